@@ -0,0 +1,113 @@
+package com.docoyo.reliable.bluetooth;
+
+import android.app.Application;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Debug;
+import android.os.Message;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.docoyo.reliable.BleManager;
+import com.docoyo.reliable.callback.BleNotifyOrIndicateCallback;
+import com.docoyo.reliable.data.BleDevice;
+import com.docoyo.reliable.exception.BleException;
+import java.lang.reflect.Field;
+import java.util.UUID;
+
+/**
+ * Checks that a notification travels from {@code onCharacteristicChanged} to its subscriber
+ * without allocating, on the binder side as well as on the event loop delivering it.
+ */
+@SuppressWarnings("deprecation")
+public class NotifyDispatchAllocationTest extends AndroidTestCase {
+
+  private static final int WARM_UP = 200;
+  private static final int ITERATIONS = 1000;
+  private static final long DELIVERY_TIMEOUT = 1000;
+
+  private volatile int received;
+  private volatile int receiverStartCount;
+  private volatile int receiverEndCount;
+
+  public void testNotificationDispatchDoesNotAllocate() throws Exception {
+    BleManager.getInstance().init((Application) getContext().getApplicationContext());
+
+    BleBluetooth bleBluetooth = new BleBluetooth(new BleDevice(null));
+    BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+        UUID.randomUUID(), BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+    characteristic.setValue(new byte[20]);
+
+    // Created off the UI thread, so it is called on the event loop of the device
+    BleNotifyOrIndicateCallback callback = new BleNotifyOrIndicateCallback() {
+      @Override
+      public void onStart() {
+      }
+
+      @Override
+      public void onCharacteristicChanged(byte[] data) {
+        int count = received + 1;
+        if (count == WARM_UP) {
+          receiverStartCount = Debug.getThreadAllocCount();
+        } else if (count == WARM_UP + ITERATIONS) {
+          receiverEndCount = Debug.getThreadAllocCount();
+        }
+        received = count;
+      }
+
+      @Override
+      public void onStop() {
+      }
+
+      @Override
+      public void onFailure(BleException exception) {
+      }
+    };
+    bleBluetooth.addNotifySubscriber(characteristic, callback);
+
+    Field field = BleBluetooth.class.getDeclaredField("coreGattCallback");
+    field.setAccessible(true);
+    BluetoothGattCallback gattCallback = (BluetoothGattCallback) field.get(bleBluetooth);
+
+    // Only one message is in flight at a time, a few pooled ones keep obtain from allocating
+    Message[] primer = new Message[8];
+    for (int i = 0; i < primer.length; i++) {
+      primer[i] = Message.obtain();
+    }
+    for (Message message : primer) {
+      message.recycle();
+    }
+
+    Debug.startAllocCounting();
+    try {
+      for (int i = 0; i < WARM_UP; i++) {
+        dispatchAndWait(gattCallback, characteristic);
+      }
+
+      Debug.resetThreadAllocCount();
+      for (int i = 0; i < ITERATIONS; i++) {
+        dispatchAndWait(gattCallback, characteristic);
+      }
+      int senderCount = Debug.getThreadAllocCount();
+
+      assertEquals("allocations while dispatching", 0, senderCount);
+      assertEquals("allocations while delivering", 0, receiverEndCount - receiverStartCount);
+    } finally {
+      Debug.stopAllocCounting();
+      bleBluetooth.removeNotifySubscriber(characteristic, callback);
+    }
+  }
+
+  private void dispatchAndWait(BluetoothGattCallback gattCallback,
+      BluetoothGattCharacteristic characteristic) {
+    int expected = received + 1;
+    gattCallback.onCharacteristicChanged(null, characteristic);
+    long deadline = SystemClock.uptimeMillis() + DELIVERY_TIMEOUT;
+    while (received < expected) {
+      if (SystemClock.uptimeMillis() > deadline) {
+        fail("notification not delivered");
+      }
+      Thread.yield();
+    }
+  }
+}
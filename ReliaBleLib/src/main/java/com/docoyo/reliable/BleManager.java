@@ -13,13 +13,20 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 
 import com.docoyo.reliable.bluetooth.BleBluetooth;
+import com.docoyo.reliable.bluetooth.BleCommand;
+import com.docoyo.reliable.bluetooth.BleConnectScheduler;
+import com.docoyo.reliable.bluetooth.BleDiscoveryPolicy;
 import com.docoyo.reliable.bluetooth.BleCommand.BleCommandType;
+import com.docoyo.reliable.bluetooth.BleEventLoop;
+import com.docoyo.reliable.bluetooth.BleEvictionPolicy;
+import com.docoyo.reliable.bluetooth.BleTransfer;
+import com.docoyo.reliable.bluetooth.CharacteristicHandle;
 import com.docoyo.reliable.bluetooth.MultipleBluetoothController;
 import com.docoyo.reliable.callback.BleGattCallback;
+import com.docoyo.reliable.callback.BleLongReadCallback;
 import com.docoyo.reliable.callback.BleNotifyOrIndicateCallback;
 import com.docoyo.reliable.callback.BleMtuChangedCallback;
 import com.docoyo.reliable.callback.BleReadCallback;
@@ -27,14 +34,23 @@ import com.docoyo.reliable.callback.BleReadDescriptorCallback;
 import com.docoyo.reliable.callback.BleRssiCallback;
 import com.docoyo.reliable.callback.BleScanAndConnectCallback;
 import com.docoyo.reliable.callback.BleScanCallback;
+import com.docoyo.reliable.callback.BleStreamWriteCallback;
+import com.docoyo.reliable.callback.BleTransferCallback;
 import com.docoyo.reliable.callback.BleWriteCallback;
 import com.docoyo.reliable.data.BleDevice;
+import com.docoyo.reliable.data.BleDiscoveryMode;
+import com.docoyo.reliable.data.BlePriority;
 import com.docoyo.reliable.data.BleScanState;
+import com.docoyo.reliable.data.BleWriteSource;
 import com.docoyo.reliable.exception.OtherException;
 import com.docoyo.reliable.scan.BleScanRuleConfig;
 import com.docoyo.reliable.scan.BleScanner;
 import com.docoyo.reliable.utils.BleLog;
+import com.docoyo.reliable.utils.BleTimingWheel;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -54,24 +70,96 @@ public class BleManager {
   private static final int DEFAULT_CONNECT_RETRY_INTERVAL = 5000;
   private static final int DEFAULT_MTU = 23;
   private static final int DEFAULT_MAX_MTU = 512;
-  private static final int DEFAULT_WRITE_DATA_SPLIT_COUNT = 20;
   private static final int DEFAULT_CONNECT_OVER_TIME = 10000;
+  private static final int DEFAULT_WRITE_WINDOW = 4;
+  private static final long DEFAULT_CONNECTION_IDLE_TIME = 2000;
+  private static final int DEFAULT_STREAMING_RATE_THRESHOLD = 20;
+  private static final int DEFAULT_MAX_CONCURRENT_CONNECT = 2;
+  private static final long DEFAULT_CONNECT_INTERVAL = 100;
+  private static final long DEFAULT_DISCOVERY_DELAY = 500;
+  private static final int DEFAULT_DISCOVER_RETRY_COUNT = 2;
 
   private int maxConnectCount = DEFAULT_MAX_MULTIPLE_DEVICE;
+  private BleEvictionPolicy evictionPolicy = BleEvictionPolicy.LEAST_RECENTLY_ACCESSED;
+  private long idleTimeout = 0;
   private int operateTimeout = DEFAULT_OPERATE_TIME;
   private int reConnectCount = DEFAULT_CONNECT_RETRY_COUNT;
   private long reConnectInterval = DEFAULT_CONNECT_RETRY_INTERVAL;
-  private int splitWriteNum = DEFAULT_WRITE_DATA_SPLIT_COUNT;
   private long connectOverTime = DEFAULT_CONNECT_OVER_TIME;
-  private HandlerThread mBgHandlerThread;
+  private int writeWindow = DEFAULT_WRITE_WINDOW;
+  private int autoMtu = 0;
+  private boolean connectionPriorityGovernor = false;
+  private int connectionIdlePriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+  private long connectionIdleTime = DEFAULT_CONNECTION_IDLE_TIME;
+  private int streamingRateThreshold = DEFAULT_STREAMING_RATE_THRESHOLD;
+  private int preferredPhy = BluetoothDevice.PHY_LE_1M_MASK;
+  private int phyOptions = BluetoothDevice.PHY_OPTION_NO_PREFERRED;
+  private boolean bulkPhySwitching = false;
+  private int maxConcurrentConnects = DEFAULT_MAX_CONCURRENT_CONNECT;
+  private long connectInterval = DEFAULT_CONNECT_INTERVAL;
+  private boolean adaptiveConnectLimit = false;
+  private BleDiscoveryMode discoveryMode = BleDiscoveryMode.ADAPTIVE;
+  private long discoveryDelay = DEFAULT_DISCOVERY_DELAY;
+  private int discoverRetryCount = DEFAULT_DISCOVER_RETRY_COUNT;
+  private final BleDiscoveryPolicy discoveryPolicy = new BleDiscoveryPolicy();
+  private final List<BleEventLoop> eventLoops = new ArrayList<>();
+  private int eventLoopCount = 1;
 
   private Handler mFgHandler;
   private Handler mBgHandler;
 
+  /**
+   * Get the looper of the first event loop, used for work that is not bound to a device
+   */
   public Looper getBgLooper() {
     return mBgLooper;
   }
 
+  /**
+   * Get the timer of the first event loop. Device timeouts use the timer of the event loop their
+   * device is pinned to.
+   */
+  public synchronized BleTimingWheel getTimingWheel() {
+    return eventLoops.isEmpty() ? null : eventLoops.get(0).getTimingWheel();
+  }
+
+  /**
+   * Get the background event loops, e.g. to inspect their load
+   */
+  public synchronized List<BleEventLoop> getEventLoops() {
+    return Collections.unmodifiableList(new ArrayList<>(eventLoops));
+  }
+
+  /**
+   * Set the number of background event loops devices are spread over. Loops can only be added,
+   * devices already connected stay on their loop.
+   *
+   * @return BleManager
+   */
+  public synchronized BleManager setEventLoopCount(int count) {
+    if (count < eventLoops.size()) {
+      BleLog.w("Event loops can not be removed, keeping " + eventLoops.size());
+    }
+    while (eventLoops.size() < count) {
+      eventLoops.add(new BleEventLoop(eventLoops.size()));
+    }
+    return this;
+  }
+
+  /**
+   * Pins a device to the event loop with the fewest devices
+   */
+  public synchronized BleEventLoop acquireEventLoop() {
+    BleEventLoop selected = eventLoops.get(0);
+    for (BleEventLoop eventLoop : eventLoops) {
+      if (eventLoop.getDeviceCount() < selected.getDeviceCount()) {
+        selected = eventLoop;
+      }
+    }
+    selected.acquire();
+    return selected;
+  }
+
   public void runBleCallbackMethodInContext(Runnable runnable, boolean isRunOnUiThread) {
     if (isRunOnUiThread) {
       if (Looper.getMainLooper().isCurrentThread()) {
@@ -110,12 +198,21 @@ public class BleManager {
       bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
       multipleBluetoothController = new MultipleBluetoothController();
       bleScanRuleConfig = new BleScanRuleConfig();
-      mBgHandlerThread = new HandlerThread("BleBgLooper");
-      mBgHandlerThread.start();
-      mBgLooper = mBgHandlerThread.getLooper();
       mFgHandler = new Handler(Looper.getMainLooper());
-      mBgHandler = new Handler(mBgLooper);
+    }
+    if (context != null) {
+      startEventLoops();
+    }
+  }
 
+  /**
+   * Starts the event loops, again after {@link #destroy()} with as many loops as before
+   */
+  private synchronized void startEventLoops() {
+    setEventLoopCount(eventLoopCount);
+    if (mBgLooper == null) {
+      mBgLooper = eventLoops.get(0).getLooper();
+      mBgHandler = new Handler(mBgLooper);
     }
   }
 
@@ -174,13 +271,130 @@ public class BleManager {
    * @return BleManager
    */
   public BleManager setMaxConnectCount(int count) {
-    if (count > DEFAULT_MAX_MULTIPLE_DEVICE) {
-      count = DEFAULT_MAX_MULTIPLE_DEVICE;
+    if (count < 1) {
+      count = 1;
     }
     this.maxConnectCount = count;
     return this;
   }
 
+  /**
+   * Get the number of connection attempts that may be in progress at the same time
+   */
+  public int getMaxConcurrentConnects() {
+    return maxConcurrentConnects;
+  }
+
+  /**
+   * Set the number of connection attempts that may be in progress at the same time, further
+   * connects are queued
+   *
+   * @return BleManager
+   */
+  public BleManager setMaxConcurrentConnects(int count) {
+    if (count < 1) {
+      count = 1;
+    }
+    this.maxConcurrentConnects = count;
+    return this;
+  }
+
+  /**
+   * Get the minimum time between the start of two connection attempts
+   */
+  public long getConnectInterval() {
+    return connectInterval;
+  }
+
+  /**
+   * Set the minimum time between the start of two connection attempts
+   *
+   * @return BleManager
+   */
+  public BleManager setConnectInterval(long interval) {
+    if (interval < 0) {
+      interval = 0;
+    }
+    this.connectInterval = interval;
+    return this;
+  }
+
+  /**
+   * Get whether the connection ceiling is learned from failed connects
+   */
+  public boolean isAdaptiveConnectLimit() {
+    return adaptiveConnectLimit;
+  }
+
+  /**
+   * Set whether the connection ceiling is learned from failed connects, see {@link
+   * BleConnectScheduler}
+   *
+   * @return BleManager
+   */
+  public BleManager setAdaptiveConnectLimit(boolean adaptive) {
+    this.adaptiveConnectLimit = adaptive;
+    return this;
+  }
+
+  /**
+   * Get the policy choosing the device to disconnect when too many are connected
+   */
+  public BleEvictionPolicy getEvictionPolicy() {
+    return evictionPolicy;
+  }
+
+  /**
+   * Set the policy choosing the device to disconnect when too many are connected
+   *
+   * @return BleManager
+   */
+  public BleManager setEvictionPolicy(BleEvictionPolicy policy) {
+    if (policy != null) {
+      this.evictionPolicy = policy;
+    }
+    return this;
+  }
+
+  /**
+   * Get the time without GATT traffic after which a device is disconnected, 0 if disabled
+   */
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Set the time without GATT traffic after which a device is disconnected, 0 disables it
+   *
+   * @return BleManager
+   */
+  public BleManager setIdleTimeout(long time) {
+    if (time < 0) {
+      time = 0;
+    }
+    this.idleTimeout = time;
+    if (multipleBluetoothController != null) {
+      multipleBluetoothController.scheduleIdleSweep();
+    }
+    return this;
+  }
+
+  /**
+   * Pinned devices are never evicted and never disconnected for being idle
+   *
+   * @return BleManager
+   */
+  public BleManager setPinned(BleDevice bleDevice, boolean pinned) {
+    if (multipleBluetoothController != null) {
+      multipleBluetoothController.setPinned(bleDevice, pinned);
+    }
+    return this;
+  }
+
+  public boolean isPinned(BleDevice bleDevice) {
+    return multipleBluetoothController != null && multipleBluetoothController.isPinned(bleDevice);
+  }
+
   /**
    * Get operate timeout
    */
@@ -239,24 +453,251 @@ public class BleManager {
   }
 
 
-  //TODO: Support
-//  /**
-//   * Get operate split Write Num
-//   */
-//  public int getSplitWriteNum() {
-//    return splitWriteNum;
-//  }
-//  /**
-//   * Set split Writ eNum
-//   *
-//   * @return BleManager
-//   */
-//  public BleManager setSplitWriteNum(int num) {
-//    if (num > 0) {
-//      this.splitWriteNum = num;
-//    }
-//    return this;
-//  }
+  /**
+   * Get the MTU requested on connect, 0 if disabled
+   */
+  public int getAutoMtu() {
+    return autoMtu;
+  }
+
+  /**
+   * Set the MTU requested after services have been discovered and before onConnectSuccess, so
+   * the first write already uses it. 0 disables the request.
+   *
+   * @return BleManager
+   */
+  public BleManager setAutoMtu(int mtu) {
+    if (mtu > DEFAULT_MAX_MTU) {
+      mtu = DEFAULT_MAX_MTU;
+    }
+    if (mtu <= DEFAULT_MTU) {
+      mtu = 0;
+    }
+    this.autoMtu = mtu;
+    return this;
+  }
+
+  /**
+   * Get whether the connection priority follows the traffic of each connection
+   */
+  public boolean isConnectionPriorityGovernor() {
+    return connectionPriorityGovernor;
+  }
+
+  /**
+   * Get the connection priority a connection falls back to when it is idle
+   */
+  public int getConnectionIdlePriority() {
+    return connectionIdlePriority;
+  }
+
+  /**
+   * Get the time without bulk traffic after which a connection falls back to the idle priority
+   */
+  public long getConnectionIdleTime() {
+    return connectionIdleTime;
+  }
+
+  /**
+   * Set whether the connection priority follows the traffic of each connection. Connections carrying
+   * bulk traffic are raised to {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH}.
+   *
+   * @return BleManager
+   */
+  public BleManager setConnectionPriorityGovernor(boolean enable) {
+    return setConnectionPriorityGovernor(enable, BluetoothGatt.CONNECTION_PRIORITY_BALANCED,
+        DEFAULT_CONNECTION_IDLE_TIME);
+  }
+
+  /**
+   * Set whether the connection priority follows the traffic of each connection
+   *
+   * @param idlePriority {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED} or {@link
+   * BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}
+   * @param idleTime time without bulk traffic before falling back to the idle priority
+   * @return BleManager
+   */
+  public BleManager setConnectionPriorityGovernor(boolean enable, int idlePriority,
+      long idleTime) {
+    if (idlePriority != BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+      idlePriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    }
+    if (idleTime < 0) {
+      idleTime = 0;
+    }
+    this.connectionPriorityGovernor = enable;
+    this.connectionIdlePriority = idlePriority;
+    this.connectionIdleTime = idleTime;
+    return this;
+  }
+
+  /**
+   * Get the notification rate per second from which a subscription counts as bulk traffic
+   */
+  public int getStreamingRateThreshold() {
+    return streamingRateThreshold;
+  }
+
+  /**
+   * Set the notification rate per second from which a subscription counts as bulk traffic
+   *
+   * @return BleManager
+   */
+  public BleManager setStreamingRateThreshold(int threshold) {
+    if (threshold < 1) {
+      threshold = 1;
+    }
+    this.streamingRateThreshold = threshold;
+    return this;
+  }
+
+  /**
+   * Get the PHY mask requested when connecting on Android 8.0 and later
+   */
+  public int getPreferredPhy() {
+    return preferredPhy;
+  }
+
+  /**
+   * Get the coding requested for the coded PHY
+   */
+  public int getPhyOptions() {
+    return phyOptions;
+  }
+
+  /**
+   * Set the PHYs requested when connecting on Android 8.0 and later, also the PHY a connection
+   * returns to after bulk traffic
+   *
+   * @param phyMask mask of {@link BluetoothDevice#PHY_LE_1M_MASK}, {@link
+   * BluetoothDevice#PHY_LE_2M_MASK} and {@link BluetoothDevice#PHY_LE_CODED_MASK}
+   * @param phyOptions {@link BluetoothDevice#PHY_OPTION_NO_PREFERRED}, {@link
+   * BluetoothDevice#PHY_OPTION_S2} or {@link BluetoothDevice#PHY_OPTION_S8}
+   * @return BleManager
+   */
+  public BleManager setPreferredPhy(int phyMask, int phyOptions) {
+    if ((phyMask & (BluetoothDevice.PHY_LE_1M_MASK | BluetoothDevice.PHY_LE_2M_MASK
+        | BluetoothDevice.PHY_LE_CODED_MASK)) == 0) {
+      phyMask = BluetoothDevice.PHY_LE_1M_MASK;
+    }
+    this.preferredPhy = phyMask;
+    this.phyOptions = phyOptions;
+    return this;
+  }
+
+  /**
+   * Get whether connections switch to LE 2M during bulk traffic
+   */
+  public boolean isBulkPhySwitching() {
+    return bulkPhySwitching;
+  }
+
+  /**
+   * Set whether connections switch to LE 2M during bulk traffic and back to the preferred PHY when
+   * idle, uses the same traffic detection as the connection priority governor
+   *
+   * @return BleManager
+   */
+  public BleManager setBulkPhySwitching(boolean enable) {
+    this.bulkPhySwitching = enable;
+    return this;
+  }
+
+  /**
+   * Get the number of writes without response that may be in flight at the same time
+   */
+  public int getWriteWindow() {
+    return writeWindow;
+  }
+
+  /**
+   * Set the number of writes without response that may be in flight at the same time
+   *
+   * @return BleManager
+   */
+  public BleManager setWriteWindow(int window) {
+    if (window < 1) {
+      window = 1;
+    }
+    this.writeWindow = window;
+    return this;
+  }
+
+  /**
+   * Get how the delay before service discovery is chosen
+   */
+  public BleDiscoveryMode getDiscoveryMode() {
+    return discoveryMode;
+  }
+
+  /**
+   * Set how the delay before service discovery is chosen
+   *
+   * @return BleManager
+   */
+  public BleManager setDiscoveryMode(BleDiscoveryMode mode) {
+    if (mode != null) {
+      this.discoveryMode = mode;
+    }
+    return this;
+  }
+
+  /**
+   * Get the delay before service discovery in {@link BleDiscoveryMode#FIXED} mode
+   */
+  public long getDiscoveryDelay() {
+    return discoveryDelay;
+  }
+
+  /**
+   * Set the delay before service discovery in {@link BleDiscoveryMode#FIXED} mode
+   *
+   * @return BleManager
+   */
+  public BleManager setDiscoveryDelay(long delay) {
+    if (delay < 0) {
+      delay = 0;
+    }
+    this.discoveryDelay = delay;
+    return this;
+  }
+
+  /**
+   * Set the delay before service discovery for a single device, overrides the discovery mode.
+   * A negative delay removes it.
+   *
+   * @return BleManager
+   */
+  public BleManager setDiscoveryDelay(BleDevice bleDevice, long delay) {
+    if (bleDevice != null) {
+      discoveryPolicy.setDeviceDelay(bleDevice, delay);
+    }
+    return this;
+  }
+
+  /**
+   * Get how often a failed service discovery is retried before the connect fails
+   */
+  public int getDiscoverRetryCount() {
+    return discoverRetryCount;
+  }
+
+  /**
+   * Set how often a failed service discovery is retried before the connect fails
+   *
+   * @return BleManager
+   */
+  public BleManager setDiscoverRetryCount(int count) {
+    if (count < 0) {
+      count = 0;
+    }
+    this.discoverRetryCount = count;
+    return this;
+  }
+
+  public BleDiscoveryPolicy getDiscoveryPolicy() {
+    return discoveryPolicy;
+  }
 
   /**
    * Get operate connect Over Time
@@ -337,8 +778,23 @@ public class BleManager {
 
   /**
    * connect a known device
+   *
+   * @return the gatt if the attempt was started immediately, null if it was queued or failed, see
+   * {@link #connect(BleDevice, BlePriority, BleGattCallback)}
    */
   public BluetoothGatt connect(BleDevice bleDevice, BleGattCallback bleGattCallback) {
+    return connect(bleDevice, BlePriority.INTERACTIVE, bleGattCallback);
+  }
+
+  /**
+   * connect a known device, attempts beyond {@link #getMaxConcurrentConnects()} are queued with the
+   * given priority. A null return does not mean failure: a queued attempt is started once a slot
+   * is free and reports its outcome through the callback like any other.
+   *
+   * @return the gatt if the attempt was started immediately, null if it was queued or failed
+   */
+  public BluetoothGatt connect(BleDevice bleDevice, BlePriority priority,
+      BleGattCallback bleGattCallback) {
     if (bleGattCallback == null) {
       throw new IllegalArgumentException("BleGattCallback can not be Null!");
     }
@@ -357,9 +813,9 @@ public class BleManager {
       bleGattCallback
           .onConnectFail(bleDevice, new OtherException("Not Found Device Exception Occurred!"));
     } else {
-      BleBluetooth bleBluetooth = multipleBluetoothController.buildConnectingBle(bleDevice);
       boolean autoConnect = bleScanRuleConfig.isAutoConnect();
-      return bleBluetooth.connect(bleDevice, autoConnect, bleGattCallback);
+      return multipleBluetoothController.getConnectScheduler()
+          .submit(bleDevice, autoConnect, priority, bleGattCallback);
     }
 
     return null;
@@ -390,6 +846,17 @@ public class BleManager {
       String uuid_service,
       String uuid_characteristic,
       BleNotifyOrIndicateCallback callback) {
+    notify(bleDevice, uuid_service, uuid_characteristic, BlePriority.INTERACTIVE, callback);
+  }
+
+  /**
+   * notify, subscription is queued with the given priority
+   */
+  public void notify(BleDevice bleDevice,
+      String uuid_service,
+      String uuid_characteristic,
+      BlePriority priority,
+      BleNotifyOrIndicateCallback callback) {
     if (callback == null) {
       throw new IllegalArgumentException("BleNotifyCallback can not be Null!");
     }
@@ -398,8 +865,9 @@ public class BleManager {
     if (bleBluetooth == null) {
       callback.onFailure(new OtherException("This device not connect!"));
     } else {
-      bleBluetooth
-          .enqueueCommand(BleCommandType.NOTIFY, uuid_service, uuid_characteristic, null, callback);
+      bleBluetooth.enqueueCommand(
+          new BleCommand(BleCommandType.NOTIFY, uuid_service, uuid_characteristic, null, callback)
+              .setPriority(priority));
     }
   }
 
@@ -423,12 +891,24 @@ public class BleManager {
 
 
   /**
-   * write
+   * write, payloads larger than the current MTU allows are split into chunks
+   */
+  public void write(BleDevice bleDevice,
+      String uuidService,
+      String uuidCharacteristic,
+      byte[] data,
+      BleWriteCallback callback) {
+    write(bleDevice, uuidService, uuidCharacteristic, data, BlePriority.INTERACTIVE, callback);
+  }
+
+  /**
+   * write, queued with the given priority
    */
   public void write(BleDevice bleDevice,
       String uuidService,
       String uuidCharacteristic,
       byte[] data,
+      BlePriority priority,
       BleWriteCallback callback) {
 
     BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
@@ -437,53 +917,149 @@ public class BleManager {
     } else if (data == null || data.length <= 0) {
       callback.onFailure(new OtherException("the data to be written is empty"));
     } else {
-      bleBluetooth
-          .enqueueCommand(BleCommandType.WRITE, uuidService, uuidCharacteristic, null, callback,
-              data);
-    }
-  }
-
-//  /**
-//   * write
-//   */
-//  public void write(BleDevice bleDevice,
-//      String uuid_service,
-//      String uuid_write,
-//      byte[] data,
-//      boolean split,
-//      boolean sendNextWhenLastSuccess,
-//      long intervalBetweenTwoPackage,
-//      BleWriteCallback callback) {
-//
-//    if (callback == null) {
-//      throw new IllegalArgumentException("BleWriteCallback can not be Null!");
-//    }
-//
-//    if (data == null) {
-//      BleLog.e("data is Null!");
-//      callback.onFailure(new OtherException("data is Null!"));
-//      return;
-//    }
-//
-//    if (data.length > 20 && !split) {
-//      BleLog
-//          .w("Be careful: data's length beyond 20! Ensure MTU higher than 23, or use spilt write!");
-//    }
-//
-//    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
-//    if (bleBluetooth == null) {
-//      callback.onFailure(new OtherException("This device not connect!"));
-//    } else {
-//      if (split && data.length > getSplitWriteNum()) {
-//        new SplitWriter().splitWrite(bleBluetooth, uuid_service, uuid_write, data,
-//            sendNextWhenLastSuccess, intervalBetweenTwoPackage, callback);
-//      } else {
-//        bleBluetooth.newBleConnector()
-//            .withUUIDString(uuid_service, uuid_write)
-//            .writeCharacteristic(uuid_write, data, callback);
-//      }
-//    }
-//  }
+      bleBluetooth.enqueueCommand(
+          new BleCommand(splitIfNeeded(bleBluetooth, BleCommandType.WRITE, data), uuidService,
+              uuidCharacteristic, null, callback, data).setPriority(priority));
+    }
+  }
+
+  /**
+   * write without response. Consecutive writes are pipelined up to {@link #getWriteWindow()}
+   * writes in flight, each callback is invoked once the stack confirms its write.
+   */
+  public void writeWithoutResponse(BleDevice bleDevice,
+      String uuidService,
+      String uuidCharacteristic,
+      byte[] data,
+      BleWriteCallback callback) {
+    writeWithoutResponse(bleDevice, uuidService, uuidCharacteristic, data,
+        BlePriority.INTERACTIVE, callback);
+  }
+
+  /**
+   * write without response, queued with the given priority
+   */
+  public void writeWithoutResponse(BleDevice bleDevice,
+      String uuidService,
+      String uuidCharacteristic,
+      byte[] data,
+      BlePriority priority,
+      BleWriteCallback callback) {
+    if (callback == null) {
+      throw new IllegalArgumentException("BleWriteCallback can not be Null!");
+    }
+
+    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
+    if (bleBluetooth == null) {
+      callback.onFailure(new OtherException("This device not connect!"));
+    } else if (data == null || data.length <= 0) {
+      callback.onFailure(new OtherException("the data to be written is empty"));
+    } else {
+      bleBluetooth.enqueueCommand(
+          new BleCommand(splitIfNeeded(bleBluetooth, BleCommandType.WRITE_NO_RESPONSE, data),
+              uuidService, uuidCharacteristic, null, callback, data)
+              .setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)
+              .setPriority(priority));
+    }
+  }
+
+  /**
+   * write from a source, the data is pulled in chunks of the current MTU while the write advances
+   * and never held in memory as a whole. The source is closed once the write is done or failed.
+   */
+  public void write(BleDevice bleDevice,
+      String uuidService,
+      String uuidCharacteristic,
+      BleWriteSource source,
+      BleStreamWriteCallback callback) {
+    write(bleDevice, uuidService, uuidCharacteristic, source, BlePriority.BULK, callback);
+  }
+
+  /**
+   * write from a source, queued with the given priority
+   */
+  public void write(BleDevice bleDevice,
+      String uuidService,
+      String uuidCharacteristic,
+      BleWriteSource source,
+      BlePriority priority,
+      BleStreamWriteCallback callback) {
+    writeSource(bleDevice, uuidService, uuidCharacteristic, source,
+        BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, priority, callback);
+  }
+
+  /**
+   * write without response from a source, every chunk still waits for the confirmation of the
+   * stack before the next one is read
+   */
+  public void writeWithoutResponse(BleDevice bleDevice,
+      String uuidService,
+      String uuidCharacteristic,
+      BleWriteSource source,
+      BleStreamWriteCallback callback) {
+    writeWithoutResponse(bleDevice, uuidService, uuidCharacteristic, source, BlePriority.BULK,
+        callback);
+  }
+
+  /**
+   * write without response from a source, queued with the given priority
+   */
+  public void writeWithoutResponse(BleDevice bleDevice,
+      String uuidService,
+      String uuidCharacteristic,
+      BleWriteSource source,
+      BlePriority priority,
+      BleStreamWriteCallback callback) {
+    writeSource(bleDevice, uuidService, uuidCharacteristic, source,
+        BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, priority, callback);
+  }
+
+  /**
+   * Starts a resumable chunked transfer of the data, see {@link BleTransfer}. The returned transfer
+   * is paused when the connection is lost and continues at its checkpoint once {@link
+   * BleTransfer#start()} is called after the reconnect.
+   */
+  public BleTransfer transfer(BleDevice bleDevice,
+      String uuidService,
+      String uuidCharacteristic,
+      ByteBuffer data,
+      BleTransferCallback callback) {
+    BleTransfer transfer = new BleTransfer(bleDevice, uuidService, uuidCharacteristic, data,
+        callback);
+    transfer.start();
+    return transfer;
+  }
+
+  private void writeSource(BleDevice bleDevice, String uuidService, String uuidCharacteristic,
+      BleWriteSource source, int writeType, BlePriority priority,
+      BleStreamWriteCallback callback) {
+    if (callback == null) {
+      throw new IllegalArgumentException("BleStreamWriteCallback can not be Null!");
+    }
+
+    BleCommand command = new BleCommand(BleCommandType.WRITE_SPLIT, uuidService,
+        uuidCharacteristic, null, callback).setSource(source).setWriteType(writeType)
+        .setPriority(priority);
+    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
+    if (source == null || source.length() == 0) {
+      command.closeSource();
+      callback.onFailure(new OtherException("the data to be written is empty"));
+    } else if (bleBluetooth == null) {
+      command.closeSource();
+      callback.onFailure(new OtherException("This device not connect!"));
+    } else {
+      bleBluetooth.enqueueCommand(command);
+    }
+  }
+
+  /**
+   * Payloads that do not fit into a single packet of the current MTU are written in chunks as one
+   * queued transfer, progress is reported per chunk
+   */
+  private static BleCommandType splitIfNeeded(BleBluetooth bleBluetooth, BleCommandType type,
+      byte[] data) {
+    return data.length > bleBluetooth.getMaxPayload() ? BleCommandType.WRITE_SPLIT : type;
+  }
 
   /**
    * read
@@ -492,6 +1068,17 @@ public class BleManager {
       String uuid_service,
       String uuid_characteristic,
       BleReadCallback callback) {
+    read(bleDevice, uuid_service, uuid_characteristic, BlePriority.INTERACTIVE, callback);
+  }
+
+  /**
+   * read, queued with the given priority
+   */
+  public void read(BleDevice bleDevice,
+      String uuid_service,
+      String uuid_characteristic,
+      BlePriority priority,
+      BleReadCallback callback) {
     if (callback == null) {
       throw new IllegalArgumentException("BleReadCallback can not be Null!");
     }
@@ -500,8 +1087,42 @@ public class BleManager {
     if (bleBluetooth == null) {
       callback.onFailure(new OtherException("This device is not connected!"));
     } else {
-      bleBluetooth
-          .enqueueCommand(BleCommandType.READ, uuid_service, uuid_characteristic, null, callback);
+      bleBluetooth.enqueueCommand(
+          new BleCommand(BleCommandType.READ, uuid_service, uuid_characteristic, null, callback)
+              .setPriority(priority));
+    }
+  }
+
+  /**
+   * long read, the characteristic is read repeatedly and the chunks are assembled into one value
+   * until the mode of the callback detects the end, see {@link BleLongReadCallback}
+   */
+  public void readLong(BleDevice bleDevice,
+      String uuid_service,
+      String uuid_characteristic,
+      BleLongReadCallback callback) {
+    readLong(bleDevice, uuid_service, uuid_characteristic, BlePriority.INTERACTIVE, callback);
+  }
+
+  /**
+   * long read, queued with the given priority
+   */
+  public void readLong(BleDevice bleDevice,
+      String uuid_service,
+      String uuid_characteristic,
+      BlePriority priority,
+      BleLongReadCallback callback) {
+    if (callback == null) {
+      throw new IllegalArgumentException("BleLongReadCallback can not be Null!");
+    }
+
+    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
+    if (bleBluetooth == null) {
+      callback.onFailure(new OtherException("This device is not connected!"));
+    } else {
+      bleBluetooth.enqueueCommand(
+          new BleCommand(BleCommandType.READ_LONG, uuid_service, uuid_characteristic, null,
+              callback).setPriority(priority));
     }
   }
 
@@ -529,9 +1150,183 @@ public class BleManager {
 
 
   /**
-   * Reads the RSSI of the device
+   * Resolves a characteristic of a connected device once, the handle can then be passed to read,
+   * write and notify instead of the UUID strings.
+   *
+   * @return the handle, null if the device is not connected or has no such characteristic
+   */
+  public CharacteristicHandle getCharacteristicHandle(BleDevice bleDevice,
+      String uuid_service,
+      String uuid_characteristic) {
+    BleBluetooth bleBluetooth = getBleBluetooth(bleDevice);
+    if (bleBluetooth == null || bleBluetooth.getGattIndex() == null) {
+      return null;
+    }
+    return bleBluetooth.getGattIndex().getHandle(uuid_service, uuid_characteristic);
+  }
+
+  /**
+   * notify a resolved characteristic
+   */
+  public void notify(BleDevice bleDevice,
+      CharacteristicHandle handle,
+      BleNotifyOrIndicateCallback callback) {
+    notify(bleDevice, handle, BlePriority.INTERACTIVE, callback);
+  }
+
+  /**
+   * notify a resolved characteristic, subscription is queued with the given priority
+   */
+  public void notify(BleDevice bleDevice,
+      CharacteristicHandle handle,
+      BlePriority priority,
+      BleNotifyOrIndicateCallback callback) {
+    if (callback == null) {
+      throw new IllegalArgumentException("BleNotifyCallback can not be Null!");
+    }
+
+    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
+    if (bleBluetooth == null) {
+      callback.onFailure(new OtherException("This device not connect!"));
+    } else if (handle == null) {
+      callback.onFailure(new OtherException("Characteristics not found"));
+    } else {
+      bleBluetooth.enqueueCommand(
+          new BleCommand(BleCommandType.NOTIFY, handle, callback, null).setPriority(priority));
+    }
+  }
+
+  /**
+   * stop notify of a resolved characteristic, remove callback
+   */
+  public void stopNotify(BleDevice bleDevice,
+      CharacteristicHandle handle,
+      BleNotifyOrIndicateCallback callback) {
+    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
+    if (bleBluetooth == null) {
+      callback.onFailure(new OtherException("This device not connect!"));
+    } else if (handle == null) {
+      callback.onFailure(new OtherException("Characteristics not found"));
+    } else {
+      bleBluetooth.enqueueCommand(
+          new BleCommand(BleCommandType.NOTIFY_STOP, handle, callback, null));
+    }
+  }
+
+  /**
+   * write a resolved characteristic
+   */
+  public void write(BleDevice bleDevice,
+      CharacteristicHandle handle,
+      byte[] data,
+      BleWriteCallback callback) {
+    write(bleDevice, handle, data, BlePriority.INTERACTIVE, callback);
+  }
+
+  /**
+   * write a resolved characteristic, queued with the given priority
+   */
+  public void write(BleDevice bleDevice,
+      CharacteristicHandle handle,
+      byte[] data,
+      BlePriority priority,
+      BleWriteCallback callback) {
+    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
+    if (bleBluetooth == null) {
+      callback.onFailure(new OtherException("This device not connect!"));
+    } else if (handle == null) {
+      callback.onFailure(new OtherException("Characteristics not found"));
+    } else if (data == null || data.length <= 0) {
+      callback.onFailure(new OtherException("the data to be written is empty"));
+    } else {
+      bleBluetooth.enqueueCommand(
+          new BleCommand(splitIfNeeded(bleBluetooth, BleCommandType.WRITE, data), handle,
+              callback, data).setPriority(priority));
+    }
+  }
+
+  /**
+   * write without response to a resolved characteristic
+   */
+  public void writeWithoutResponse(BleDevice bleDevice,
+      CharacteristicHandle handle,
+      byte[] data,
+      BleWriteCallback callback) {
+    writeWithoutResponse(bleDevice, handle, data, BlePriority.INTERACTIVE, callback);
+  }
+
+  /**
+   * write without response to a resolved characteristic, queued with the given priority
+   */
+  public void writeWithoutResponse(BleDevice bleDevice,
+      CharacteristicHandle handle,
+      byte[] data,
+      BlePriority priority,
+      BleWriteCallback callback) {
+    if (callback == null) {
+      throw new IllegalArgumentException("BleWriteCallback can not be Null!");
+    }
+
+    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
+    if (bleBluetooth == null) {
+      callback.onFailure(new OtherException("This device not connect!"));
+    } else if (handle == null) {
+      callback.onFailure(new OtherException("Characteristics not found"));
+    } else if (data == null || data.length <= 0) {
+      callback.onFailure(new OtherException("the data to be written is empty"));
+    } else {
+      bleBluetooth.enqueueCommand(
+          new BleCommand(splitIfNeeded(bleBluetooth, BleCommandType.WRITE_NO_RESPONSE, data),
+              handle, callback, data)
+              .setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)
+              .setPriority(priority));
+    }
+  }
+
+  /**
+   * read a resolved characteristic
+   */
+  public void read(BleDevice bleDevice,
+      CharacteristicHandle handle,
+      BleReadCallback callback) {
+    read(bleDevice, handle, BlePriority.INTERACTIVE, callback);
+  }
+
+  /**
+   * read a resolved characteristic, queued with the given priority
+   */
+  public void read(BleDevice bleDevice,
+      CharacteristicHandle handle,
+      BlePriority priority,
+      BleReadCallback callback) {
+    if (callback == null) {
+      throw new IllegalArgumentException("BleReadCallback can not be Null!");
+    }
+
+    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
+    if (bleBluetooth == null) {
+      callback.onFailure(new OtherException("This device is not connected!"));
+    } else if (handle == null) {
+      callback.onFailure(new OtherException("Characteristics not found"));
+    } else {
+      bleBluetooth.enqueueCommand(
+          new BleCommand(BleCommandType.READ, handle, callback, null).setPriority(priority));
+    }
+  }
+
+  /**
+   * Reads the RSSI of the device, queued as {@link BlePriority#BACKGROUND}
+   */
+  public void readRssi(BleDevice bleDevice,
+      BleRssiCallback callback) {
+    readRssi(bleDevice, BlePriority.BACKGROUND, callback);
+  }
+
+  /**
+   * Reads the RSSI of the device, queued with the given priority
    */
   public void readRssi(BleDevice bleDevice,
+      BlePriority priority,
       BleRssiCallback callback) {
     if (callback == null) {
       throw new IllegalArgumentException("BleRssiCallback can not be Null!");
@@ -541,9 +1336,9 @@ public class BleManager {
     if (bleBluetooth == null) {
       callback.onFailure(new OtherException("This device is not connected!"));
     } else {
-      bleBluetooth
-          .enqueueCommand(BleCommandType.READ_RSSI, BleCommandType.READ_RSSI.name(), null, null,
-              callback);
+      bleBluetooth.enqueueCommand(
+          new BleCommand(BleCommandType.READ_RSSI, BleCommandType.READ_RSSI.name(), null, null,
+              callback).setPriority(priority));
     }
   }
 
@@ -580,23 +1375,47 @@ public class BleManager {
     }
   }
 
-  //TODO: Support functionality
-//  /**
-//   * requestConnectionPriority
-//   *
-//   * @param connectionPriority Request a specific connection priority. Must be one of {@link
-//   * BluetoothGatt#CONNECTION_PRIORITY_BALANCED}, {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} or
-//   * {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}.
-//   * @throws IllegalArgumentException If the parameters are outside of their specified range.
-//   */
-//  public boolean requestConnectionPriority(BleDevice bleDevice, int connectionPriority) {
-//    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
-//    if (bleBluetooth == null) {
-//      return false;
-//    } else {
-//      return bleBluetooth.newBleConnector().requestConnectionPriority(connectionPriority);
-//    }
-//  }
+  /**
+   * Get the negotiated MTU of a connected device
+   *
+   * @return the MTU, 0 if the device is not connected
+   */
+  public int getMtu(BleDevice bleDevice) {
+    BleBluetooth bleBluetooth = getBleBluetooth(bleDevice);
+    return bleBluetooth == null ? 0 : bleBluetooth.getMtu();
+  }
+
+  /**
+   * Requests a PHY for a connected device at runtime, requires Android 8.0
+   *
+   * @return false if the device is not connected or the request could not be made
+   */
+  public boolean setPreferredPhy(BleDevice bleDevice, int txPhy, int rxPhy, int phyOptions) {
+    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
+    return bleBluetooth != null && bleBluetooth.setPreferredPhy(txPhy, rxPhy, phyOptions);
+  }
+
+  /**
+   * requestConnectionPriority
+   *
+   * @param connectionPriority Request a specific connection priority. Must be one of {@link
+   * BluetoothGatt#CONNECTION_PRIORITY_BALANCED}, {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} or
+   * {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}. With the governor enabled the priority
+   * may be changed again by the governor.
+   * @throws IllegalArgumentException If the parameters are outside of their specified range.
+   */
+  public boolean requestConnectionPriority(BleDevice bleDevice, int connectionPriority) {
+    if (connectionPriority < BluetoothGatt.CONNECTION_PRIORITY_BALANCED
+        || connectionPriority > BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+      throw new IllegalArgumentException("connectionPriority not within valid range");
+    }
+    BleBluetooth bleBluetooth = multipleBluetoothController.getBleBluetooth(bleDevice);
+    if (bleBluetooth == null) {
+      return false;
+    } else {
+      return bleBluetooth.requestConnectionPriority(connectionPriority);
+    }
+  }
 
   /**
    * Check if device supports BLE
@@ -722,7 +1541,21 @@ public class BleManager {
     if (multipleBluetoothController != null) {
       multipleBluetoothController.destroy();
     }
-    mBgHandlerThread.quitSafely();
+    stopEventLoops();
+  }
+
+  /**
+   * Quits the event loops and drops them, so that {@link #init(Application)} starts fresh ones
+   */
+  private synchronized void stopEventLoops() {
+    for (BleEventLoop eventLoop : eventLoops) {
+      eventLoop.quit();
+    }
+    if (!eventLoops.isEmpty()) {
+      eventLoopCount = eventLoops.size();
+    }
+    eventLoops.clear();
+    mBgLooper = null;
   }
 
 
@@ -1,20 +1,22 @@
 package com.docoyo.reliable.bluetooth;
 
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothProfile;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 import com.docoyo.reliable.BleManager;
 import com.docoyo.reliable.bluetooth.BleCommand.BleCommandType;
 import com.docoyo.reliable.callback.BleBaseCallback;
 import com.docoyo.reliable.callback.BleGattCallback;
+import com.docoyo.reliable.callback.BleNotifyOrIndicateCallback;
 import com.docoyo.reliable.data.BleConnectStateParameter;
 import com.docoyo.reliable.data.BleDevice;
 import com.docoyo.reliable.data.BleMsg;
@@ -24,65 +26,176 @@ import com.docoyo.reliable.exception.ConnectException;
 import com.docoyo.reliable.exception.OtherException;
 import com.docoyo.reliable.exception.TimeoutException;
 import com.docoyo.reliable.utils.BleLog;
+import com.docoyo.reliable.utils.BleTimingWheel;
 
 import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.bluetooth.BluetoothDevice.TRANSPORT_LE;
 
 public class BleBluetooth {
 
-  private final HashMap<String, List<BleCommand>> bleCommandHashMap = new HashMap<>();
+  private static final BleNotifyDispatcher[] NO_DISPATCHERS = new BleNotifyDispatcher[0];
+
+  static final int DEFAULT_MTU = 23;
+  private static final int ATT_HEADER_SIZE = 3;
+
+  /**
+   * Notification subscribers per characteristic. The map and its arrays are never modified after
+   * publication, writers replace them, so the binder thread can read without locking.
+   */
+  private volatile IdentityHashMap<BluetoothGattCharacteristic, BleNotifyDispatcher[]>
+      notifyDispatchers = new IdentityHashMap<>();
 
   private LastState lastState;
   private boolean isActiveDisconnect = false;
   private final BleDevice bleDevice;
   private BluetoothGatt bluetoothGatt;
+  private volatile BleGattIndex gattIndex;
+  private volatile int mtu = DEFAULT_MTU;
+  private volatile int txPhy = BluetoothDevice.PHY_LE_1M;
+  private volatile int rxPhy = BluetoothDevice.PHY_LE_1M;
   private final BleQueue bleQueue;
-  private final MainHandler mainHandler = new MainHandler(BleManager.getInstance().getBgLooper());
+  private final BleConnector bleConnector;
+  private final BleConnectionPriorityGovernor priorityGovernor;
+  private final BleEventLoop eventLoop;
+  private final MainHandler mainHandler;
+  private boolean eventLoopReleased = false;
+  private volatile long lastAccessTime;
+  private volatile long lastTrafficTime;
+  private final AtomicLong trafficCount = new AtomicLong();
   private int connectRetryCount = 0;
+  private int discoverRetryCount = 0;
+  private long discoverDelay = 0;
+  private boolean mtuNegotiating = false;
+  private int discoverStatus;
   private BleGattCallback bleConnectGattCallback;
+  private final BleTimingWheel.Timeout connectTimeout =
+      new BleTimingWheel.Timeout(this::onConnectOverTime);
 
   BleBluetooth(BleDevice bleDevice) {
     this.bleDevice = bleDevice;
+    this.eventLoop = BleManager.getInstance().acquireEventLoop();
+    this.mainHandler = new MainHandler(eventLoop.getLooper());
     this.bleQueue = new BleQueue(this);
+    this.bleConnector = new BleConnector(this);
+    this.priorityGovernor = new BleConnectionPriorityGovernor(this);
   }
 
-  public BleConnector newBleConnector() {
-    return new BleConnector(this);
+  /**
+   * The event loop this device is pinned to, all its work runs on this loop
+   */
+  public BleEventLoop getEventLoop() {
+    return eventLoop;
+  }
+
+  public Looper getLooper() {
+    return eventLoop.getLooper();
   }
 
   /**
-   * Adds a callback to the callback list and returns the length of the list for the respective
-   * uuid
+   * Unpins the device from its event loop once the connection is over, may be called repeatedly
    */
-  synchronized int addCommand(BleCommand command) {
-    List<BleCommand> commands = bleCommandHashMap.get(command.getUuid());
-    if (commands == null) {
-      commands = new ArrayList<>();
+  private synchronized void releaseEventLoop() {
+    if (!eventLoopReleased) {
+      eventLoopReleased = true;
+      eventLoop.release();
     }
-    commands.add(command);
-    bleCommandHashMap.put(command.getUuid(), commands);
-    return commands.size();
   }
 
-  synchronized int removeCommand(BleCommand command) {
-    List<BleCommand> commands = bleCommandHashMap.get(command.getUuid());
-    if (commands != null) {
-      commands.remove(command);
-      if (commands.isEmpty()) {
-        bleCommandHashMap.remove(command.getUuid());
-      } else {
-        bleCommandHashMap.put(command.getUuid(), commands);
-      }
-      return commands.size();
-    } else {
-      bleCommandHashMap.remove(command.getUuid());
+  /**
+   * The connector executing the commands of this connection, reset whenever a connection attempt
+   * starts
+   */
+  public BleConnector getBleConnector() {
+    return bleConnector;
+  }
+
+  /**
+   * @return the number of subscribers of the characteristic including the new one
+   */
+  synchronized int addNotifySubscriber(BluetoothGattCharacteristic characteristic,
+      BleNotifyOrIndicateCallback callback) {
+    BleNotifyDispatcher[] dispatchers = notifyDispatchers.get(characteristic);
+    if (dispatchers == null) {
+      dispatchers = NO_DISPATCHERS;
+    }
+    BleNotifyDispatcher[] updated = Arrays.copyOf(dispatchers, dispatchers.length + 1);
+    updated[dispatchers.length] = new BleNotifyDispatcher(callback, eventLoop.getLooper());
+    IdentityHashMap<BluetoothGattCharacteristic, BleNotifyDispatcher[]> map =
+        new IdentityHashMap<>(notifyDispatchers);
+    map.put(characteristic, updated);
+    notifyDispatchers = map;
+    return updated.length;
+  }
+
+  /**
+   * @return the number of subscribers that remain on the characteristic
+   */
+  synchronized int removeNotifySubscriber(BluetoothGattCharacteristic characteristic,
+      BleNotifyOrIndicateCallback callback) {
+    BleNotifyDispatcher[] dispatchers = notifyDispatchers.get(characteristic);
+    if (dispatchers == null) {
       return 0;
     }
+    for (int i = 0; i < dispatchers.length; i++) {
+      if (dispatchers[i].getCallback() == callback) {
+        BleNotifyDispatcher[] updated = new BleNotifyDispatcher[dispatchers.length - 1];
+        System.arraycopy(dispatchers, 0, updated, 0, i);
+        System.arraycopy(dispatchers, i + 1, updated, i, updated.length - i);
+        IdentityHashMap<BluetoothGattCharacteristic, BleNotifyDispatcher[]> map =
+            new IdentityHashMap<>(notifyDispatchers);
+        if (updated.length == 0) {
+          map.remove(characteristic);
+        } else {
+          map.put(characteristic, updated);
+        }
+        notifyDispatchers = map;
+        return updated.length;
+      }
+    }
+    return dispatchers.length;
+  }
+
+  /**
+   * Marks the device as recently used, called on every lookup without taking a lock
+   */
+  void touch() {
+    lastAccessTime = SystemClock.elapsedRealtimeNanos();
+  }
+
+  /**
+   * Resets the usage statistics when the device enters the connected registry
+   */
+  void resetUsage() {
+    touch();
+    lastTrafficTime = SystemClock.elapsedRealtime();
+    trafficCount.set(0);
+  }
+
+  public long getLastAccessTime() {
+    return lastAccessTime;
+  }
+
+  /**
+   * Records GATT traffic of this connection, used for eviction and idle reaping
+   */
+  public void recordTraffic() {
+    lastTrafficTime = SystemClock.elapsedRealtime();
+    trafficCount.incrementAndGet();
+  }
+
+  /**
+   * Time of the last GATT traffic in {@link SystemClock#elapsedRealtime()} milliseconds
+   */
+  public long getLastTrafficTime() {
+    return lastTrafficTime;
+  }
+
+  public long getTrafficCount() {
+    return trafficCount.get();
   }
 
   public String getDeviceKey() {
@@ -97,20 +210,119 @@ public class BleBluetooth {
     return bluetoothGatt;
   }
 
+  /**
+   * The ATT MTU of the current connection, updated whenever a MTU request succeeds, including the
+   * request made on connect, see {@link BleManager#setAutoMtu(int)}
+   */
+  public int getMtu() {
+    return mtu;
+  }
+
+  /**
+   * The transmitter PHY of the current connection, one of {@link BluetoothDevice#PHY_LE_1M},
+   * {@link BluetoothDevice#PHY_LE_2M} or {@link BluetoothDevice#PHY_LE_CODED}
+   */
+  public int getTxPhy() {
+    return txPhy;
+  }
+
+  /**
+   * The receiver PHY of the current connection
+   */
+  public int getRxPhy() {
+    return rxPhy;
+  }
+
+  /**
+   * Requests a PHY for this connection, the result is reported through {@code onPhyUpdate}.
+   * Requires Android 8.0, earlier versions always use LE 1M.
+   *
+   * @param txPhy mask of {@link BluetoothDevice#PHY_LE_1M_MASK}, {@link
+   * BluetoothDevice#PHY_LE_2M_MASK} and {@link BluetoothDevice#PHY_LE_CODED_MASK}
+   * @param rxPhy mask of the preferred receiver PHYs
+   * @param phyOptions coding of the coded PHY, e.g. {@link BluetoothDevice#PHY_OPTION_S8}
+   * @return false if the request could not be made
+   */
+  public boolean setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+    BluetoothGatt gatt = bluetoothGatt;
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || gatt == null) {
+      return false;
+    }
+    gatt.setPreferredPhy(txPhy, rxPhy, phyOptions);
+    return true;
+  }
+
+  /**
+   * The largest value that fits into a single write
+   */
+  public int getMaxPayload() {
+    return mtu - ATT_HEADER_SIZE;
+  }
+
+  /**
+   * The attributes of the current connection, null until services have been discovered
+   */
+  public BleGattIndex getGattIndex() {
+    return gattIndex;
+  }
+
+  public void enqueueCommand(BleCommand command) {
+    Message message = bleQueue.getHandler().obtainMessage(BleQueue.Messages.MSG_ENQUEUE, command);
+    message.sendToTarget();
+  }
+
+  /**
+   * Called by the queue for every command it dispatches
+   */
+  public void onCommandDispatched(BleCommand command) {
+    priorityGovernor.onCommand(command);
+  }
+
+  /**
+   * Requests a connection priority, see {@link BluetoothGatt#requestConnectionPriority(int)}. With
+   * the governor enabled the priority may be changed again later.
+   */
+  public boolean requestConnectionPriority(int connectionPriority) {
+    return priorityGovernor.request(connectionPriority);
+  }
+
+  public int getConnectionPriority() {
+    return priorityGovernor.getCurrentPriority();
+  }
+
+  /**
+   * The command the queue is waiting on, only to be called on the looper of the device
+   */
+  BleCommand getCurrentCommand() {
+    return bleQueue.getCurrentCommand();
+  }
+
+  /**
+   * Lets the queue continue after a command that has been waiting for the stack is complete
+   */
+  void completeCommand(BleCommand command) {
+    bleQueue.getHandler().obtainMessage(Messages.MSG_DEQUEUE, command).sendToTarget();
+  }
+
+  /**
+   * Removes a command that is still waiting in the queue. Its callback receives a failure, commands
+   * that are already being executed are not affected.
+   */
+  public void cancelCommand(BleCommand command) {
+    Message message = bleQueue.getHandler().obtainMessage(BleQueue.Messages.MSG_CANCEL, command);
+    message.sendToTarget();
+  }
+
   public void enqueueCommand(BleCommandType bleCommandType, String uuidService,
       String uuidCharacteristic, String uuidDescriptor, BleBaseCallback callback, byte[] value) {
-    Message message = bleQueue.getHandler().obtainMessage(BleQueue.Messages.MSG_ENQUEUE,
-        new BleCommand(bleCommandType, uuidService, uuidCharacteristic,
-            uuidDescriptor, callback, value));
-    message.sendToTarget();
+    enqueueCommand(new BleCommand(bleCommandType, uuidService, uuidCharacteristic,
+        uuidDescriptor, callback, value));
   }
 
   public void enqueueCommand(BleCommandType bleCommandType, String uuidService,
       String uuidCharacteristic, String uuidDescriptor, BleBaseCallback callback, int value) {
-    Message message = bleQueue.getHandler().obtainMessage(BleQueue.Messages.MSG_ENQUEUE,
-        new BleCommand(bleCommandType, uuidService, uuidCharacteristic,
-            uuidDescriptor, callback, value));
-    message.sendToTarget();
+    enqueueCommand(new BleCommand(bleCommandType, uuidService, uuidCharacteristic,
+        uuidDescriptor, callback, value));
   }
 
   public void enqueueCommand(BleCommandType bleCommandType, String uuidService,
@@ -142,8 +354,15 @@ public class BleBluetooth {
     bleConnectGattCallback = callback;
 
     lastState = LastState.CONNECT_CONNECTING;
+    mtu = DEFAULT_MTU;
+    txPhy = BluetoothDevice.PHY_LE_1M;
+    rxPhy = BluetoothDevice.PHY_LE_1M;
+    bleConnector.reset();
 
-    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      bluetoothGatt = bleDevice.getDevice().connectGatt(BleManager.getInstance().getContext(),
+          autoConnect, coreGattCallback, TRANSPORT_LE, BleManager.getInstance().getPreferredPhy());
+    } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
       bluetoothGatt = bleDevice.getDevice().connectGatt(BleManager.getInstance().getContext(),
           autoConnect, coreGattCallback, TRANSPORT_LE);
     } else {
@@ -155,9 +374,8 @@ public class BleBluetooth {
           .runBleCallbackMethodInContext(() -> bleConnectGattCallback.onStartConnect(),
               bleConnectGattCallback.isRunOnUiThread());
 
-      Message message = mainHandler.obtainMessage();
-      message.what = BleMsg.MSG_CONNECT_OVER_TIME;
-      mainHandler.sendMessageDelayed(message, BleManager.getInstance().getConnectOverTime());
+      eventLoop.getTimingWheel()
+          .schedule(connectTimeout, BleManager.getInstance().getConnectOverTime());
 
     } else {
       disconnectGatt();
@@ -166,6 +384,7 @@ public class BleBluetooth {
       lastState = LastState.CONNECT_FAILURE;
       BleManager.getInstance().getMultipleBluetoothController()
           .removeConnectingBle(BleBluetooth.this);
+      releaseEventLoop();
       if (bleConnectGattCallback != null) {
         BleManager.getInstance()
             .runBleCallbackMethodInContext(() -> bleConnectGattCallback
@@ -182,14 +401,27 @@ public class BleBluetooth {
     disconnectGatt();
   }
 
+  /**
+   * Disconnects on behalf of the library, e.g. when the device is evicted or idle. The app is told
+   * about a passive disconnect, so it can reconnect if it still needs the device.
+   */
+  synchronized void reclaim() {
+    isActiveDisconnect = false;
+    disconnectGatt();
+  }
+
   public synchronized void destroy() {
     lastState = LastState.CONNECT_IDLE;
     disconnectGatt();
     refreshDeviceCache();
     closeBluetoothGatt();
     bleConnectGattCallback = null;
-    bleCommandHashMap.clear();
+    gattIndex = null;
+    priorityGovernor.stop();
+    notifyDispatchers = new IdentityHashMap<>();
+    connectTimeout.cancel();
     mainHandler.removeCallbacksAndMessages(null);
+    releaseEventLoop();
   }
 
   private synchronized void disconnectGatt() {
@@ -217,6 +449,47 @@ public class BleBluetooth {
     }
   }
 
+  /**
+   * Expires on the background looper when the connection could not be established in time
+   */
+  private void onConnectOverTime() {
+    disconnectGatt();
+    refreshDeviceCache();
+    closeBluetoothGatt();
+
+    lastState = LastState.CONNECT_FAILURE;
+    BleManager.getInstance().getMultipleBluetoothController()
+        .removeConnectingBle(BleBluetooth.this);
+    releaseEventLoop();
+
+    if (bleConnectGattCallback != null) {
+      BleManager.getInstance().runBleCallbackMethodInContext(
+          () -> bleConnectGattCallback.onConnectFail(bleDevice, new TimeoutException()),
+          bleConnectGattCallback.isRunOnUiThread());
+    }
+  }
+
+  /**
+   * Publishes the device as connected and notifies the application
+   */
+  private void onConnected() {
+    lastState = LastState.CONNECT_CONNECTED;
+    isActiveDisconnect = false;
+    BleManager.getInstance().getMultipleBluetoothController()
+        .addBleBluetooth(BleBluetooth.this);
+    BleManager.getInstance().getMultipleBluetoothController()
+        .removeConnectingBle(BleBluetooth.this);
+
+    priorityGovernor.start();
+
+    int status = discoverStatus;
+    if (bleConnectGattCallback != null) {
+      BleManager.getInstance().runBleCallbackMethodInContext(
+          () -> bleConnectGattCallback.onConnectSuccess(bleDevice, bluetoothGatt, status),
+          true);
+    }
+  }
+
   private final class MainHandler extends Handler {
 
     MainHandler(Looper looper) {
@@ -230,6 +503,12 @@ public class BleBluetooth {
           disconnectGatt();
           refreshDeviceCache();
           closeBluetoothGatt();
+          BleManager.getInstance().getMultipleBluetoothController().getConnectScheduler()
+              .onConnectFailed(((BleConnectStateParameter) msg.obj).getStatus());
+          mainHandler.removeMessages(BleMsg.MSG_DISCOVER_SERVICES);
+          mainHandler.removeMessages(BleMsg.MSG_MTU_NEGOTIATED);
+          mainHandler.removeMessages(BleMsg.MSG_MTU_OVER_TIME);
+          mtuNegotiating = false;
 
           if (connectRetryCount < BleManager.getInstance().getReConnectCount()) {
             BleLog
@@ -245,6 +524,7 @@ public class BleBluetooth {
             lastState = LastState.CONNECT_FAILURE;
             BleManager.getInstance().getMultipleBluetoothController()
                 .removeConnectingBle(BleBluetooth.this);
+            releaseEventLoop();
 
             BleConnectStateParameter para = (BleConnectStateParameter) msg.obj;
             int status = para.getStatus();
@@ -259,13 +539,17 @@ public class BleBluetooth {
 
         case BleMsg.MSG_DISCONNECTED: {
           lastState = LastState.CONNECT_DISCONNECT;
+          gattIndex = null;
+          priorityGovernor.stop();
           BleManager.getInstance().getMultipleBluetoothController()
               .removeBleBluetooth(BleBluetooth.this);
 
           disconnect();
           refreshDeviceCache();
           closeBluetoothGatt();
+          connectTimeout.cancel();
           mainHandler.removeCallbacksAndMessages(null);
+          releaseEventLoop();
 
           BleConnectStateParameter para = (BleConnectStateParameter) msg.obj;
           boolean isActive = para.isActive();
@@ -283,23 +567,6 @@ public class BleBluetooth {
         }
         break;
 
-        case BleMsg.MSG_CONNECT_OVER_TIME: {
-          disconnectGatt();
-          refreshDeviceCache();
-          closeBluetoothGatt();
-
-          lastState = LastState.CONNECT_FAILURE;
-          BleManager.getInstance().getMultipleBluetoothController()
-              .removeConnectingBle(BleBluetooth.this);
-
-          if (bleConnectGattCallback != null) {
-            BleManager.getInstance().runBleCallbackMethodInContext(
-                () -> bleConnectGattCallback.onConnectFail(bleDevice, new TimeoutException()),
-                bleConnectGattCallback.isRunOnUiThread());
-          }
-        }
-        break;
-
         case BleMsg.MSG_DISCOVER_SERVICES: {
           if (bluetoothGatt != null) {
             boolean discoverServiceResult = bluetoothGatt.discoverServices();
@@ -317,6 +584,15 @@ public class BleBluetooth {
         break;
 
         case BleMsg.MSG_DISCOVER_FAIL: {
+          if (bluetoothGatt != null
+              && discoverRetryCount < BleManager.getInstance().getDiscoverRetryCount()) {
+            ++discoverRetryCount;
+            discoverDelay = BleManager.getInstance().getDiscoveryPolicy()
+                .getRetryDelay(discoverDelay);
+            BleLog.w("Discover services fail, retry " + discoverDelay + " millisecond later");
+            mainHandler.sendEmptyMessageDelayed(BleMsg.MSG_DISCOVER_SERVICES, discoverDelay);
+            break;
+          }
           disconnectGatt();
           refreshDeviceCache();
           closeBluetoothGatt();
@@ -324,6 +600,7 @@ public class BleBluetooth {
           lastState = LastState.CONNECT_FAILURE;
           BleManager.getInstance().getMultipleBluetoothController()
               .removeConnectingBle(BleBluetooth.this);
+          releaseEventLoop();
 
           if (bleConnectGattCallback != null) {
             BleManager.getInstance()
@@ -335,19 +612,33 @@ public class BleBluetooth {
         break;
 
         case BleMsg.MSG_DISCOVER_SUCCESS: {
-          lastState = LastState.CONNECT_CONNECTED;
-          isActiveDisconnect = false;
-          BleManager.getInstance().getMultipleBluetoothController()
-              .removeConnectingBle(BleBluetooth.this);
-          BleManager.getInstance().getMultipleBluetoothController()
-              .addBleBluetooth(BleBluetooth.this);
+          BleManager.getInstance().getDiscoveryPolicy()
+              .onDiscovered(bleDevice, discoverDelay, discoverRetryCount);
+          gattIndex = new BleGattIndex(bluetoothGatt);
 
           BleConnectStateParameter para = (BleConnectStateParameter) msg.obj;
-          int status = para.getStatus();
-          if (bleConnectGattCallback != null) {
-            BleManager.getInstance().runBleCallbackMethodInContext(
-                () -> bleConnectGattCallback.onConnectSuccess(bleDevice, bluetoothGatt, status),
-                true);
+          discoverStatus = para.getStatus();
+          int autoMtu = BleManager.getInstance().getAutoMtu();
+          if (autoMtu > DEFAULT_MTU && bluetoothGatt.requestMtu(autoMtu)) {
+            // The device is published once the MTU is known, so no write can race the request
+            mtuNegotiating = true;
+            mainHandler.sendEmptyMessageDelayed(BleMsg.MSG_MTU_OVER_TIME,
+                BleManager.getInstance().getOperateTimeout());
+          } else {
+            onConnected();
+          }
+        }
+        break;
+
+        case BleMsg.MSG_MTU_NEGOTIATED:
+        case BleMsg.MSG_MTU_OVER_TIME: {
+          if (mtuNegotiating) {
+            mtuNegotiating = false;
+            mainHandler.removeMessages(BleMsg.MSG_MTU_OVER_TIME);
+            if (msg.what == BleMsg.MSG_MTU_OVER_TIME) {
+              BleLog.w("MTU request timed out, continue with MTU " + mtu);
+            }
+            onConnected();
           }
         }
         break;
@@ -372,12 +663,14 @@ public class BleBluetooth {
 
       bluetoothGatt = gatt;
 
-      mainHandler.removeMessages(BleMsg.MSG_CONNECT_OVER_TIME);
+      connectTimeout.cancel();
 
       if (newState == BluetoothProfile.STATE_CONNECTED) {
         Message message = mainHandler.obtainMessage();
         message.what = BleMsg.MSG_DISCOVER_SERVICES;
-        mainHandler.sendMessageDelayed(message, 500);
+        discoverRetryCount = 0;
+        discoverDelay = BleManager.getInstance().getDiscoveryPolicy().getDelay(bleDevice);
+        mainHandler.sendMessageDelayed(message, discoverDelay);
 
       } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
         if (lastState == LastState.CONNECT_CONNECTING) {
@@ -397,80 +690,77 @@ public class BleBluetooth {
       }
     }
 
-    private void handleBleResponseCharacteristic(BleCommandType type, int messageId,
-        BluetoothGattCharacteristic characteristic, int status, boolean removeCallback,
-        boolean dequeue) {
-      BleCommand command = BleCommand.fromCharacteristic(type, characteristic);
-      List<BleCommand> bleCommands = bleCommandHashMap.get(command.getUuid());
-
-      if (bleCommands != null && !bleCommands.isEmpty()) {
-        Handler handler = bleCommands.get(0).getHandler();
-        if (handler != null) {
-          Message message = handler.obtainMessage();
-          message.what = messageId;
-          message.obj = bleCommands;
-          Bundle bundle = new Bundle();
-          bundle.putInt(BleMsg.KEY_BLE_BUNDLE_STATUS, status);
-          bundle.putByteArray(BleMsg.KEY_BLE_BUNDLE_VALUE, characteristic.getValue());
-          message.setData(bundle);
-          handler.sendMessage(message);
-        }
+    /**
+     * Hands the response to the command waiting in the slot of the characteristic
+     *
+     * @return true if a waiting command was found for the response, false otherwise
+     */
+    private boolean handleBleResponseCharacteristic(BleCommandType type, int messageId,
+        BluetoothGattCharacteristic characteristic, int status, byte[] value) {
+      BleGattIndex index = gattIndex;
+      if (index == null) {
+        return false;
+      }
+      CharacteristicHandle handle = index.getHandle(characteristic);
+      if (handle == null) {
+        return false;
+      }
+      return dispatchResponse(index.claimResponse(handle.getIndex(), type), messageId, status, 0,
+          value);
+    }
 
-        if (removeCallback) {
-          bleCommandHashMap.remove(bleCommands.get(0).getUuid());
-        }
-        if (dequeue) {
-          bleQueue.getHandler().obtainMessage(Messages.MSG_DEQUEUE, bleCommands.get(0))
-              .sendToTarget();
-        }
+    /**
+     * Confirms a chunk of a split write, the command stays in its slot until the transfer is done
+     */
+    private boolean handleSplitWriteResponse(BluetoothGattCharacteristic characteristic,
+        int status) {
+      BleGattIndex index = gattIndex;
+      CharacteristicHandle handle = index == null ? null : index.getHandle(characteristic);
+      BleCommand command = handle == null ? null
+          : index.peekResponse(handle.getIndex(), BleCommandType.WRITE_SPLIT);
+      if (command == null) {
+        return false;
       }
+      bleConnector.getHandler()
+          .obtainMessage(BleMsg.MSG_SPLIT_WRITE_NEXT, status, 0, command).sendToTarget();
+      return true;
     }
 
-    private void handleBleResponseDescriptor(BluetoothGattDescriptor descriptor, int status) {
-      BleCommand command = BleCommand.fromDescriptor(BleCommandType.READ_DESCRIPTOR, descriptor);
-      List<BleCommand> bleCommands = bleCommandHashMap.get(command.getUuid());
-
-      if (bleCommands != null && !bleCommands.isEmpty()) {
-        Handler handler = bleCommands.get(0).getHandler();
-        if (handler != null) {
-          Message message = handler.obtainMessage();
-          message.what = BleMsg.MSG_CHA_READ_RESULT;
-          message.obj = bleCommands;
-          Bundle bundle = new Bundle();
-          bundle.putInt(BleMsg.KEY_BLE_BUNDLE_STATUS, status);
-          bundle.putByteArray(BleMsg.KEY_BLE_BUNDLE_VALUE, descriptor.getValue());
-          message.setData(bundle);
-          handler.sendMessage(message);
-        }
-        bleCommandHashMap.remove(bleCommands.get(0).getUuid());
-        bleQueue.getHandler().obtainMessage(Messages.MSG_DEQUEUE, bleCommands.get(0))
-            .sendToTarget();
+    /**
+     * Hands a chunk to a long read, the command stays in its slot until the value is complete
+     */
+    private void handleLongReadResponse(BluetoothGattCharacteristic characteristic, int status,
+        byte[] value) {
+      BleGattIndex index = gattIndex;
+      CharacteristicHandle handle = index == null ? null : index.getHandle(characteristic);
+      BleCommand command = handle == null ? null
+          : index.peekResponse(handle.getIndex(), BleCommandType.READ_LONG);
+      if (command != null) {
+        command.setResult(value);
+        bleConnector.getHandler()
+            .obtainMessage(BleMsg.MSG_LONG_READ_NEXT, status, 0, command).sendToTarget();
       }
     }
 
     private void handleBleResponseInteger(BleCommandType type, int messageId,
         int status, int value) {
-      BleCommand command = new BleCommand(type, type.name(),
-          null, null, null);
-      List<BleCommand> bleCommands = bleCommandHashMap.get(command.getUuid());
-
-      if (bleCommands != null && !bleCommands.isEmpty()) {
-        Handler handler = bleCommands.get(0).getHandler();
-        if (handler != null) {
-          Message message = handler.obtainMessage();
-          message.what = messageId;
-          message.obj = bleCommands;
-          Bundle bundle = new Bundle();
-          bundle.putInt(BleMsg.KEY_BLE_BUNDLE_STATUS, status);
-          bundle.putInt(BleMsg.KEY_BLE_BUNDLE_VALUE, value);
-          message.setData(bundle);
-          handler.sendMessage(message);
-        }
+      BleGattIndex index = gattIndex;
+      if (index == null) {
+        return;
+      }
+      int slot = type == BleCommandType.READ_RSSI ? index.getRssiSlot() : index.getMtuSlot();
+      dispatchResponse(index.claimResponse(slot, type), messageId, status, value, null);
+    }
 
-        bleCommandHashMap.remove(bleCommands.get(0).getUuid());
-        bleQueue.getHandler().obtainMessage(Messages.MSG_DEQUEUE, bleCommands.get(0))
-            .sendToTarget();
+    private boolean dispatchResponse(BleCommand command, int messageId, int status, int intValue,
+        byte[] value) {
+      if (command == null) {
+        return false;
       }
+      command.setResult(value);
+      bleConnector.getHandler().obtainMessage(messageId, status, intValue, command).sendToTarget();
+      completeCommand(command);
+      return true;
     }
 
     @Override
@@ -500,8 +790,18 @@ public class BleBluetooth {
         BluetoothGattCharacteristic characteristic) {
       super.onCharacteristicChanged(gatt, characteristic);
 
-      handleBleResponseCharacteristic(BleCommandType.NOTIFY, BleMsg.MSG_CHA_NOTIFY_DATA_CHANGE,
-          characteristic, 0, false, false);
+      // Fast path, looks up the subscribers by identity and hands the value over without
+      // allocating anything but pooled messages
+      BleNotifyDispatcher[] dispatchers = notifyDispatchers.get(characteristic);
+      if (dispatchers != null) {
+        eventLoop.countNotification();
+        recordTraffic();
+        priorityGovernor.onNotification();
+        byte[] value = characteristic.getValue();
+        for (BleNotifyDispatcher dispatcher : dispatchers) {
+          dispatcher.dispatch(value);
+        }
+      }
 
     }
 
@@ -512,10 +812,10 @@ public class BleBluetooth {
       byte[] value = descriptor.getValue();
       if (Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
         handleBleResponseCharacteristic(BleCommandType.NOTIFY, BleMsg.MSG_CHA_NOTIFY_START,
-            descriptor.getCharacteristic(), status, false, true);
+            descriptor.getCharacteristic(), status, value);
       } else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
         handleBleResponseCharacteristic(BleCommandType.NOTIFY_STOP, BleMsg.MSG_CHA_NOTIFY_STOP,
-            descriptor.getCharacteristic(), status, true, true);
+            descriptor.getCharacteristic(), status, value);
       } else {
         BleLog
             .e("Could not determine what to do with the written descriptor " + descriptor.getUuid()
@@ -530,8 +830,12 @@ public class BleBluetooth {
         BluetoothGattCharacteristic characteristic, int status) {
       super.onCharacteristicWrite(gatt, characteristic, status);
 
-      handleBleResponseCharacteristic(BleCommandType.WRITE, BleMsg.MSG_CHA_WRITE_RESULT,
-          characteristic, status, true, true);
+      if (!handleBleResponseCharacteristic(BleCommandType.WRITE, BleMsg.MSG_CHA_WRITE_RESULT,
+          characteristic, status, characteristic.getValue())
+          && !handleSplitWriteResponse(characteristic, status)) {
+        // No write is waiting for a response, so this confirms a pipelined write
+        bleQueue.getHandler().obtainMessage(Messages.MSG_WRITE_CREDIT, status, 0).sendToTarget();
+      }
     }
 
     @Override
@@ -540,8 +844,10 @@ public class BleBluetooth {
         int status) {
       super.onCharacteristicRead(gatt, characteristic, status);
 
-      handleBleResponseCharacteristic(BleCommandType.READ, BleMsg.MSG_CHA_READ_RESULT,
-          characteristic, status, true, true);
+      if (!handleBleResponseCharacteristic(BleCommandType.READ, BleMsg.MSG_CHA_READ_RESULT,
+          characteristic, status, characteristic.getValue())) {
+        handleLongReadResponse(characteristic, status, characteristic.getValue());
+      }
     }
 
     @Override
@@ -549,8 +855,8 @@ public class BleBluetooth {
         int status) {
       super.onDescriptorRead(gatt, descriptor, status);
 
-      handleBleResponseDescriptor(
-          descriptor, status);
+      handleBleResponseCharacteristic(BleCommandType.READ_DESCRIPTOR, BleMsg.MSG_CHA_READ_RESULT,
+          descriptor.getCharacteristic(), status, descriptor.getValue());
     }
 
     @Override
@@ -560,10 +866,39 @@ public class BleBluetooth {
       handleBleResponseInteger(BleCommandType.READ_RSSI, BleMsg.MSG_READ_RSSI_RESULT, status, rssi);
     }
 
+    @Override
+    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+      super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+      BleLog.i("BluetoothGattCallback：onPhyUpdate "
+          + '\n' + "txPhy: " + txPhy
+          + '\n' + "rxPhy: " + rxPhy
+          + '\n' + "status: " + status);
+
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        BleBluetooth.this.txPhy = txPhy;
+        BleBluetooth.this.rxPhy = rxPhy;
+      }
+    }
+
+    @Override
+    public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+      super.onPhyRead(gatt, txPhy, rxPhy, status);
+
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        BleBluetooth.this.txPhy = txPhy;
+        BleBluetooth.this.rxPhy = rxPhy;
+      }
+    }
+
     @Override
     public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
       super.onMtuChanged(gatt, mtu, status);
 
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        BleBluetooth.this.mtu = mtu;
+      }
+      mainHandler.sendEmptyMessage(BleMsg.MSG_MTU_NEGOTIATED);
+
       handleBleResponseInteger(BleCommandType.SET_MTU, BleMsg.MSG_SET_MTU_RESULT, status, mtu);
 
     }
@@ -1,10 +1,12 @@
 package com.docoyo.reliable.bluetooth;
 
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.os.Handler;
 import com.docoyo.reliable.callback.BleBaseCallback;
-import java.util.Objects;
+import com.docoyo.reliable.data.BlePriority;
+import com.docoyo.reliable.data.BleWriteSource;
+import com.docoyo.reliable.utils.BleLog;
+import com.docoyo.reliable.utils.BleTimingWheel;
+import java.io.IOException;
 
 public class BleCommand {
 
@@ -16,7 +18,19 @@ public class BleCommand {
   private final String serviceUuid;
   private final String characteristicsUuid;
   private final String descriptorUuid;
-  private Handler handler;
+  private final CharacteristicHandle characteristicHandle;
+  private byte[] result;
+  private BleWriteSource source;
+  private int writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+  private BlePriority priority = BlePriority.INTERACTIVE;
+  private long id;
+  private BleTimingWheel.Timeout timeout;
+  private boolean abandoned;
+
+  // Links of the intrusive BleCommandDeque this command is part of
+  BleCommandDeque owner;
+  BleCommand prev;
+  BleCommand next;
 
   public BleCommand(BleCommandType bleCommandType, String uuidService, String uuidCharacteristic,
       String uuidDescriptor, BleBaseCallback callback) {
@@ -32,6 +46,22 @@ public class BleCommand {
     this.callback = callback;
     this.value = value;
     this.valueInt = 0;
+    this.characteristicHandle = null;
+  }
+
+  /**
+   * Command on a characteristic that has already been resolved, see {@link BleGattIndex}
+   */
+  public BleCommand(BleCommandType bleCommandType, CharacteristicHandle characteristicHandle,
+      BleBaseCallback callback, byte[] value) {
+    this.bleCommandType = bleCommandType;
+    this.serviceUuid = characteristicHandle.getServiceUuid();
+    this.characteristicsUuid = characteristicHandle.getCharacteristicUuid();
+    this.descriptorUuid = null;
+    this.characteristicHandle = characteristicHandle;
+    this.callback = callback;
+    this.value = value;
+    this.valueInt = 0;
   }
 
   public BleCommand(BleCommandType bleCommandType, String uuidService, String uuidCharacteristic,
@@ -43,15 +73,18 @@ public class BleCommand {
     this.callback = callback;
     this.valueInt = value;
     this.value = null;
+    this.characteristicHandle = null;
   }
 
-  public String getUuid() {
-    return bleCommandType.name() + serviceUuid + characteristicsUuid + descriptorUuid;
+  /**
+   * Id assigned by the queue when the command is enqueued, increasing in enqueue order
+   */
+  public long getId() {
+    return id;
   }
 
-  public String getUuidWithCallback() {
-    return bleCommandType.name() + serviceUuid + characteristicsUuid + descriptorUuid + String
-        .valueOf(callback.hashCode());
+  public void setId(long id) {
+    this.id = id;
   }
 
   public BleCommandType getBleCommandType() {
@@ -70,64 +103,112 @@ public class BleCommand {
     return descriptorUuid;
   }
 
+  /**
+   * The resolved characteristic, null if the command was created from UUID strings
+   */
+  public CharacteristicHandle getCharacteristicHandle() {
+    return characteristicHandle;
+  }
+
   public BleBaseCallback getCallback() {
     return callback;
   }
 
-  public static BleCommand fromCharacteristic(BleCommandType bleCommandType,
-      BluetoothGattCharacteristic characteristic) {
-    return new BleCommand(bleCommandType, characteristic.getService().getUuid().toString(),
-        characteristic.getUuid().toString(), null, null);
+  /**
+   * Write type used for the chunks of a {@link BleCommandType#WRITE_SPLIT} command
+   */
+  public int getWriteType() {
+    return writeType;
   }
 
-  public static BleCommand fromDescriptor(BleCommandType bleCommandType,
-      BluetoothGattDescriptor descriptor) {
-    return new BleCommand(bleCommandType,
-        descriptor.getCharacteristic().getService().getUuid().toString(),
-        descriptor.getCharacteristic().getUuid().toString(), descriptor.getUuid().toString(), null);
+  public BleCommand setWriteType(int writeType) {
+    this.writeType = writeType;
+    return this;
   }
 
   public byte[] getValue() {
     return value;
   }
 
+  /**
+   * Source of a streaming {@link BleCommandType#WRITE_SPLIT} command, null if the data is given as
+   * value
+   */
+  public BleWriteSource getSource() {
+    return source;
+  }
+
+  public BleCommand setSource(BleWriteSource source) {
+    this.source = source;
+    return this;
+  }
+
+  /**
+   * Closes the source once the command is done or has been dropped, does nothing without one
+   */
+  public void closeSource() {
+    if (source != null) {
+      try {
+        source.close();
+      } catch (IOException e) {
+        BleLog.e("Closing the write source failed: " + e.getMessage());
+      }
+      source = null;
+    }
+  }
+
   public int getValueInt() {
     return valueInt;
   }
 
-  public void setHandler(Handler handler) {
-    this.handler = handler;
+  public BlePriority getPriority() {
+    return priority;
   }
 
-  public Handler getHandler() {
-    return this.handler;
+  public BleCommand setPriority(BlePriority priority) {
+    if (priority != null) {
+      this.priority = priority;
+    }
+    return this;
   }
 
-  @Override
-  public boolean equals(Object o) {
-    if (this == o) {
-      return true;
-    }
-    if (o == null || getClass() != o.getClass()) {
-      return false;
-    }
-    BleCommand that = (BleCommand) o;
-    return Objects.equals(callback, that.callback) &&
-        bleCommandType == that.bleCommandType &&
-        Objects.equals(serviceUuid, that.serviceUuid) &&
-        Objects.equals(characteristicsUuid, that.characteristicsUuid) &&
-        Objects.equals(descriptorUuid, that.descriptorUuid);
+  public BleTimingWheel.Timeout getTimeout() {
+    return timeout;
+  }
+
+  public void setTimeout(BleTimingWheel.Timeout timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * True once the command has been failed while the stack still owes its response
+   */
+  public boolean isAbandoned() {
+    return abandoned;
+  }
+
+  public void setAbandoned(boolean abandoned) {
+    this.abandoned = abandoned;
+  }
+
+  /**
+   * Value reported with the GATT response, captured on the binder thread
+   */
+  public byte[] getResult() {
+    return result;
   }
 
-  @Override
-  public int hashCode() {
-    return Objects.hash(callback, bleCommandType, serviceUuid, characteristicsUuid, descriptorUuid);
+  void setResult(byte[] result) {
+    this.result = result;
   }
 
   public enum BleCommandType {
     READ,
+    READ_LONG,
     READ_DESCRIPTOR,
     WRITE,
+    WRITE_NO_RESPONSE,
+    WRITE_SPLIT,
     NOTIFY,
     NOTIFY_STOP,
     READ_RSSI,
@@ -0,0 +1,88 @@
+package com.docoyo.reliable.bluetooth;
+
+
+/**
+ * Intrusive doubly linked deque of {@link BleCommand}s. The links live in the commands
+ * themselves, so adding, polling and removing an arbitrary command are O(1) and allocate nothing.
+ * A command can be part of at most one deque at a time. Not thread safe, it is meant to be used on
+ * the looper of the owning {@link com.docoyo.reliable.data.BleQueue}.
+ */
+public class BleCommandDeque {
+
+  private BleCommand head;
+  private BleCommand tail;
+  private int size;
+
+  public void add(BleCommand command) {
+    if (command.owner != null) {
+      throw new IllegalStateException("Command " + command.getId() + " is already queued");
+    }
+    command.owner = this;
+    command.prev = tail;
+    command.next = null;
+    if (tail == null) {
+      head = command;
+    } else {
+      tail.next = command;
+    }
+    tail = command;
+    size++;
+  }
+
+  public BleCommand peek() {
+    return head;
+  }
+
+  public BleCommand poll() {
+    BleCommand command = head;
+    if (command != null) {
+      unlink(command);
+    }
+    return command;
+  }
+
+  /**
+   * Removes the command if it is part of this deque.
+   *
+   * @return true if the command was removed
+   */
+  public boolean remove(BleCommand command) {
+    if (command == null || command.owner != this) {
+      return false;
+    }
+    unlink(command);
+    return true;
+  }
+
+  public boolean contains(BleCommand command) {
+    return command != null && command.owner == this;
+  }
+
+  public boolean isEmpty() {
+    return head == null;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private void unlink(BleCommand command) {
+    BleCommand prev = command.prev;
+    BleCommand next = command.next;
+    if (prev == null) {
+      head = next;
+    } else {
+      prev.next = next;
+    }
+    if (next == null) {
+      tail = prev;
+    } else {
+      next.prev = prev;
+    }
+    command.prev = null;
+    command.next = null;
+    command.owner = null;
+    size--;
+  }
+
+}
@@ -0,0 +1,264 @@
+package com.docoyo.reliable.bluetooth;
+
+
+import android.bluetooth.BluetoothGatt;
+import android.os.SystemClock;
+
+import com.docoyo.reliable.BleManager;
+import com.docoyo.reliable.callback.BleGattCallback;
+import com.docoyo.reliable.data.BleDevice;
+import com.docoyo.reliable.data.BlePriority;
+import com.docoyo.reliable.exception.OtherException;
+import com.docoyo.reliable.utils.BleLog;
+import com.docoyo.reliable.utils.BleTimingWheel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Admission control in front of {@link MultipleBluetoothController#buildConnectingBle(BleDevice)}.
+ * At most {@link BleManager#getMaxConcurrentConnects()} connection attempts are in progress at the
+ * same time and two attempts are started at least {@link BleManager#getConnectInterval()} apart.
+ * Excess requests wait in one FIFO lane per {@link BlePriority}.
+ * <p>
+ * With the adaptive connect limit enabled, a connect failing with GATT status 133 while other
+ * devices are connected is taken as the controller running out of links. The number of connected
+ * devices is then used as ceiling, and queued requests wait for a disconnect instead of causing
+ * another failure. The ceiling is probed again after {@link #PROBE_HOLD_TIME}.
+ */
+public class BleConnectScheduler {
+
+  static final int GATT_ERROR = 133;
+  static final long PROBE_HOLD_TIME = 60000;
+
+  private static final BlePriority[] PRIORITIES = BlePriority.values();
+
+  private final MultipleBluetoothController controller;
+  private final List<ArrayDeque<PendingConnect>> lanes = new ArrayList<>(PRIORITIES.length);
+  private final Set<BleBluetooth> connecting =
+      Collections.newSetFromMap(new IdentityHashMap<>());
+  private final BleTimingWheel.Timeout pumpTimeout = new BleTimingWheel.Timeout(this::pump);
+
+  private int starting = 0;
+  private long lastStartTime = 0;
+  private int probedLimit = 0;
+  private long probedAt = 0;
+
+  private static final class PendingConnect {
+
+    final BleDevice bleDevice;
+    final boolean autoConnect;
+    final BleGattCallback callback;
+    BluetoothGatt bluetoothGatt;
+
+    PendingConnect(BleDevice bleDevice, boolean autoConnect, BleGattCallback callback) {
+      this.bleDevice = bleDevice;
+      this.autoConnect = autoConnect;
+      this.callback = callback;
+    }
+  }
+
+  BleConnectScheduler(MultipleBluetoothController controller) {
+    this.controller = controller;
+    for (int i = 0; i < PRIORITIES.length; i++) {
+      lanes.add(new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * Queues a connection attempt and starts it right away if admission allows.
+   *
+   * @return the gatt of the attempt if it was started immediately, null if it has been queued or
+   * failed
+   */
+  public BluetoothGatt submit(BleDevice bleDevice, boolean autoConnect, BlePriority priority,
+      BleGattCallback callback) {
+    PendingConnect pendingConnect = new PendingConnect(bleDevice, autoConnect, callback);
+    synchronized (this) {
+      lanes.get(priority.ordinal()).add(pendingConnect);
+    }
+    pump();
+    return pendingConnect.bluetoothGatt;
+  }
+
+  /**
+   * Withdraws the queued attempts of the device, attempts already started are not affected. The
+   * withdrawn attempts fail with "Connect cancelled".
+   *
+   * @return true if an attempt was withdrawn
+   */
+  public boolean cancel(BleDevice bleDevice) {
+    if (bleDevice == null) {
+      return false;
+    }
+    List<PendingConnect> withdrawn = withdraw(bleDevice.getKey());
+    notifyCancelled(withdrawn);
+    return !withdrawn.isEmpty();
+  }
+
+  /**
+   * Withdraws all queued attempts, attempts already started are not affected
+   */
+  void cancelAll() {
+    notifyCancelled(withdraw(null));
+  }
+
+  /**
+   * Removes the queued attempts of the device with the given key, or all of them for null
+   */
+  private synchronized List<PendingConnect> withdraw(String key) {
+    List<PendingConnect> withdrawn = new ArrayList<>();
+    for (ArrayDeque<PendingConnect> lane : lanes) {
+      Iterator<PendingConnect> iterator = lane.iterator();
+      while (iterator.hasNext()) {
+        PendingConnect pendingConnect = iterator.next();
+        if (key == null || key.equals(pendingConnect.bleDevice.getKey())) {
+          iterator.remove();
+          withdrawn.add(pendingConnect);
+        }
+      }
+    }
+    return withdrawn;
+  }
+
+  private void notifyCancelled(List<PendingConnect> withdrawn) {
+    for (PendingConnect pendingConnect : withdrawn) {
+      BleGattCallback callback = pendingConnect.callback;
+      BleManager.getInstance().runBleCallbackMethodInContext(
+          () -> callback.onConnectFail(pendingConnect.bleDevice,
+              new OtherException("Connect cancelled")),
+          callback.isRunOnUiThread());
+    }
+  }
+
+  /**
+   * Starts as many queued attempts as admission allows.
+   */
+  public void pump() {
+    PendingConnect next;
+    while ((next = admitNext()) != null) {
+      start(next);
+    }
+  }
+
+  private synchronized PendingConnect admitNext() {
+    if (connecting.size() + starting >= BleManager.getInstance().getMaxConcurrentConnects()) {
+      return null;
+    }
+    int lane = selectLane();
+    if (lane < 0) {
+      return null;
+    }
+
+    long now = SystemClock.elapsedRealtime();
+    if (probedLimit > 0) {
+      if (now - probedAt >= PROBE_HOLD_TIME) {
+        BleLog.i("connect limit probe expired, was " + probedLimit);
+        probedLimit = 0;
+      } else if (controller.getConnectedCount() + connecting.size() + starting >= probedLimit) {
+        // Woken up by a disconnect or once the probe expires
+        schedulePump(probedAt + PROBE_HOLD_TIME - now);
+        return null;
+      }
+    }
+
+    long wait = lastStartTime + BleManager.getInstance().getConnectInterval() - now;
+    if (lastStartTime > 0 && wait > 0) {
+      schedulePump(wait);
+      return null;
+    }
+
+    lastStartTime = now;
+    starting++;
+    return lanes.get(lane).poll();
+  }
+
+  private int selectLane() {
+    for (int i = 0; i < lanes.size(); i++) {
+      if (!lanes.get(i).isEmpty()) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void schedulePump(long delay) {
+    BleTimingWheel timingWheel = BleManager.getInstance().getTimingWheel();
+    if (timingWheel != null) {
+      timingWheel.schedule(pumpTimeout, delay);
+    }
+  }
+
+  private void start(PendingConnect pendingConnect) {
+    BleBluetooth bleBluetooth = controller.buildConnectingBle(pendingConnect.bleDevice);
+    synchronized (this) {
+      starting--;
+      connecting.add(bleBluetooth);
+    }
+    pendingConnect.bluetoothGatt = bleBluetooth
+        .connect(pendingConnect.bleDevice, pendingConnect.autoConnect, pendingConnect.callback);
+  }
+
+  /**
+   * The attempt of the given device has ended, successful or not, and frees its slot.
+   */
+  void onConnectFinished(BleBluetooth bleBluetooth) {
+    boolean removed;
+    synchronized (this) {
+      removed = connecting.remove(bleBluetooth);
+    }
+    if (removed) {
+      pump();
+    }
+  }
+
+  /**
+   * A single connection attempt failed with the given GATT status, retries may follow.
+   */
+  synchronized void onConnectFailed(int status) {
+    int connected = controller.getConnectedCount();
+    if (status == GATT_ERROR && connected > 0
+        && BleManager.getInstance().isAdaptiveConnectLimit()) {
+      probedLimit = connected;
+      probedAt = SystemClock.elapsedRealtime();
+      BleLog.w("connect failed with " + connected + " devices connected, limit lowered");
+    }
+  }
+
+  /**
+   * The ceiling learned from failed connects, 0 if none is in effect
+   */
+  public synchronized int getProbedLimit() {
+    return probedLimit;
+  }
+
+  public synchronized int getPendingCount() {
+    int count = 0;
+    for (ArrayDeque<PendingConnect> lane : lanes) {
+      count += lane.size();
+    }
+    return count;
+  }
+
+  public synchronized int getConnectingCount() {
+    return connecting.size() + starting;
+  }
+
+  /**
+   * Withdraws all queued attempts and forgets the attempts in progress
+   */
+  void clear() {
+    List<PendingConnect> withdrawn = withdraw(null);
+    synchronized (this) {
+      connecting.clear();
+      probedLimit = 0;
+      pumpTimeout.cancel();
+    }
+    notifyCancelled(withdrawn);
+  }
+}
@@ -0,0 +1,172 @@
+package com.docoyo.reliable.bluetooth;
+
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.docoyo.reliable.BleManager;
+import com.docoyo.reliable.bluetooth.BleCommand.BleCommandType;
+import com.docoyo.reliable.data.BlePriority;
+import com.docoyo.reliable.utils.BleLog;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Raises the connection to {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} while it carries bulk
+ * traffic and drops it back to {@link BleManager#getConnectionIdlePriority()} once it has been
+ * quiet for {@link BleManager#getConnectionIdleTime()}. Bulk traffic is any {@link
+ * BlePriority#BULK} command, split write or long read for as long as it runs, or notifications
+ * arriving faster than {@link BleManager#getStreamingRateThreshold()} per second. Runs on the
+ * looper of the device.
+ * <p>
+ * With {@link BleManager#isBulkPhySwitching()} the same signal switches the connection to LE 2M
+ * during bulk traffic and back to {@link BleManager#getPreferredPhy()} when idle, if the adapter
+ * supports 2M.
+ * <p>
+ * The periodic evaluation is posted to a plain {@link Handler}, so it does not keep the timing
+ * wheel of the device ticking for the lifetime of the connection.
+ */
+class BleConnectionPriorityGovernor {
+
+  static final long EVALUATE_INTERVAL = 500;
+
+  private final BleBluetooth bleBluetooth;
+  private final Handler handler;
+  private final Runnable evaluateRunnable = this::evaluate;
+  private final AtomicInteger notificationCount = new AtomicInteger();
+
+  private volatile boolean running = false;
+  private boolean governPriority;
+  private boolean governPhy;
+  private boolean bulkPhy;
+  private volatile int currentPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+  private long lastBusyTime;
+  private long lastEvaluateTime;
+
+  BleConnectionPriorityGovernor(BleBluetooth bleBluetooth) {
+    this.bleBluetooth = bleBluetooth;
+    this.handler = new Handler(bleBluetooth.getLooper());
+  }
+
+  /**
+   * Starts governing a freshly established connection
+   */
+  void start() {
+    BleManager bleManager = BleManager.getInstance();
+    governPriority = bleManager.isConnectionPriorityGovernor();
+    governPhy = bleManager.isBulkPhySwitching() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+        && bleManager.getBluetoothAdapter() != null
+        && bleManager.getBluetoothAdapter().isLe2MPhySupported();
+    if (!governPriority && !governPhy) {
+      return;
+    }
+    running = true;
+    bulkPhy = false;
+    currentPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    notificationCount.set(0);
+    lastBusyTime = lastEvaluateTime = SystemClock.elapsedRealtime();
+    handler.removeCallbacks(evaluateRunnable);
+    scheduleEvaluate();
+  }
+
+  void stop() {
+    running = false;
+    handler.removeCallbacks(evaluateRunnable);
+  }
+
+  /**
+   * Called on the binder thread for every notification
+   */
+  void onNotification() {
+    if (running) {
+      notificationCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Called by the queue for every command it dispatches
+   */
+  void onCommand(BleCommand command) {
+    if (running && isBulk(command)) {
+      lastBusyTime = SystemClock.elapsedRealtime();
+      onBusy();
+    }
+  }
+
+  /**
+   * Split writes and long reads are dispatched once and may run for many seconds
+   */
+  private static boolean isBulk(BleCommand command) {
+    return command.getPriority() == BlePriority.BULK
+        || command.getBleCommandType() == BleCommandType.WRITE_SPLIT
+        || command.getBleCommandType() == BleCommandType.READ_LONG;
+  }
+
+  /**
+   * Requests a connection priority unless it is already in effect
+   */
+  boolean request(int priority) {
+    if (priority == currentPriority) {
+      return true;
+    }
+    BluetoothGatt bluetoothGatt = bleBluetooth.getBluetoothGatt();
+    if (bluetoothGatt == null || !bluetoothGatt.requestConnectionPriority(priority)) {
+      return false;
+    }
+    BleLog.i("connection priority " + currentPriority + " -> " + priority);
+    currentPriority = priority;
+    return true;
+  }
+
+  int getCurrentPriority() {
+    return currentPriority;
+  }
+
+  private void evaluate() {
+    if (!running) {
+      return;
+    }
+    long now = SystemClock.elapsedRealtime();
+    long elapsed = Math.max(1, now - lastEvaluateTime);
+    lastEvaluateTime = now;
+    int rate = (int) (notificationCount.getAndSet(0) * 1000L / elapsed);
+
+    BleCommand current = bleBluetooth.getCurrentCommand();
+    if (rate >= BleManager.getInstance().getStreamingRateThreshold()
+        || current != null && isBulk(current)) {
+      lastBusyTime = now;
+      onBusy();
+    } else if (now - lastBusyTime >= BleManager.getInstance().getConnectionIdleTime()) {
+      onIdle();
+    }
+    scheduleEvaluate();
+  }
+
+  private void onBusy() {
+    if (governPriority) {
+      request(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    }
+    if (governPhy && !bulkPhy) {
+      bulkPhy = bleBluetooth.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK,
+          BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+    }
+  }
+
+  private void onIdle() {
+    if (governPriority) {
+      request(BleManager.getInstance().getConnectionIdlePriority());
+    }
+    if (governPhy && bulkPhy) {
+      int phy = BleManager.getInstance().getPreferredPhy();
+      bleBluetooth.setPreferredPhy(phy, phy, BleManager.getInstance().getPhyOptions());
+      bulkPhy = false;
+    }
+  }
+
+  private void scheduleEvaluate() {
+    handler.postDelayed(evaluateRunnable, EVALUATE_INTERVAL);
+  }
+}
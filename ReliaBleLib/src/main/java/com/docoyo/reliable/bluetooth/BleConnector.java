@@ -4,8 +4,6 @@ package com.docoyo.reliable.bluetooth;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 
@@ -26,7 +24,6 @@ import com.docoyo.reliable.exception.TimeoutException;
 
 import com.docoyo.reliable.utils.BleLog;
 
-import java.util.List;
 import java.util.UUID;
 
 
@@ -35,20 +32,35 @@ public class BleConnector {
   private static final UUID UUID_CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR = UUID
       .fromString("00002902-0000-1000-8000-00805f9b34fb");
 
+  /**
+   * The write was handed to the stack and consumes one credit until it is confirmed.
+   */
+  public static final int WRITE_SUBMITTED = 0;
+  /**
+   * The stack refused the write, it should be retried once a credit is returned.
+   */
+  public static final int WRITE_BUSY = 1;
+  /**
+   * The write failed and the callback has already been notified.
+   */
+  public static final int WRITE_HANDLED = 2;
+
   private final BleManager mBleManager;
 
-  private final BluetoothGatt mBluetoothGatt;
-  private BluetoothGattService mGattService;
+  private BluetoothGatt mBluetoothGatt;
   private BluetoothGattCharacteristic mCharacteristic;
+  private CharacteristicHandle mHandle;
+  private BleGattIndex mGattIndex;
+  private SplitWriter mSplitWriter;
+  private LongReader mLongReader;
   private final BleBluetooth mBleBluetooth;
   private final Handler mHandler;
   private BluetoothGattDescriptor mDescriptor;
 
   BleConnector(BleBluetooth bleBluetooth) {
     this.mBleBluetooth = bleBluetooth;
-    this.mBluetoothGatt = bleBluetooth.getBluetoothGatt();
     this.mBleManager = BleManager.getInstance();
-    this.mHandler = new Handler(mBleManager.getBgLooper()) {
+    this.mHandler = new Handler(bleBluetooth.getLooper()) {
       @Override
       public void handleMessage(Message msg) {
         super.handleMessage(msg);
@@ -64,30 +76,27 @@ public class BleConnector {
             break;
           }
 
-          case BleMsg.MSG_CHA_NOTIFY_DATA_CHANGE: {
-            handleDataChange(msg);
+          case BleMsg.MSG_CHA_WRITE_RESULT: {
+            BleCommand bleCommand = (BleCommand) msg.obj;
+            BleWriteCallback callback = (BleWriteCallback) bleCommand.getCallback();
+            int status = msg.arg1;
+            byte[] value = bleCommand.getResult();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+              mBleManager.runBleCallbackMethodInContext(
+                  () -> callback.onWriteSuccess(BleWriteState.DATA_WRITE_SINGLE,
+                      BleWriteState.DATA_WRITE_SINGLE, value),
+                  callback.isRunOnUiThread());
+            } else {
+              mBleManager.runBleCallbackMethodInContext(
+                  () -> callback.onFailure(new GattException(status)),
+                  callback.isRunOnUiThread());
+            }
             break;
           }
 
-          case BleMsg.MSG_CHA_WRITE_RESULT: {
-            List<BleCommand> bleCommands = (List<BleCommand>) msg.obj;
-            Bundle bundle = msg.getData();
-            int status = bundle.getInt(BleMsg.KEY_BLE_BUNDLE_STATUS);
-            byte[] value = bundle.getByteArray(BleMsg.KEY_BLE_BUNDLE_VALUE);
-            if (bleCommands != null) {
-              for (BleCommand bleCommand : bleCommands) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                  mBleManager.runBleCallbackMethodInContext(
-                      () -> ((BleWriteCallback) bleCommand.getCallback())
-                          .onWriteSuccess(BleWriteState.DATA_WRITE_SINGLE,
-                              BleWriteState.DATA_WRITE_SINGLE, value),
-                      bleCommand.getCallback().isRunOnUiThread());
-                } else {
-                  mBleManager.runBleCallbackMethodInContext(
-                      () -> bleCommand.getCallback().onFailure(new GattException(status)),
-                      bleCommand.getCallback().isRunOnUiThread());
-                }
-              }
+          case BleMsg.MSG_SPLIT_WRITE_NEXT: {
+            if (mSplitWriter != null && mSplitWriter.getCommand() == msg.obj) {
+              mSplitWriter.onChunkWritten(msg.arg1);
             }
             break;
           }
@@ -97,6 +106,13 @@ public class BleConnector {
             break;
           }
 
+          case BleMsg.MSG_LONG_READ_NEXT: {
+            if (mLongReader != null && mLongReader.getCommand() == msg.obj) {
+              mLongReader.onChunkRead(msg.arg1, mLongReader.getCommand().getResult());
+            }
+            break;
+          }
+
           case BleMsg.MSG_DESC_READ_RESULT: {
             handleByteResult(msg);
             break;
@@ -123,109 +139,119 @@ public class BleConnector {
       }
 
       private void handleByteResult(Message msg) {
-        @SuppressWarnings("unchecked")
-        List<BleCommand> bleCommands = (List<BleCommand>) msg.obj;
-        Bundle bundle = msg.getData();
-        int status = bundle.getInt(BleMsg.KEY_BLE_BUNDLE_STATUS);
-        byte[] value = bundle.getByteArray(BleMsg.KEY_BLE_BUNDLE_VALUE);
-        if (bleCommands != null) {
-          for (BleCommand bleCommand : bleCommands) {
-            BleByteResultCallback callback = (BleByteResultCallback) bleCommand.getCallback();
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-              mBleManager.runBleCallbackMethodInContext(
-                  () -> callback.onSuccess(value), callback.isRunOnUiThread());
-            } else {
-              mBleManager.runBleCallbackMethodInContext(
-                  () -> callback.onFailure(new GattException(status)),
-                  callback.isRunOnUiThread());
-            }
-          }
+        BleCommand bleCommand = (BleCommand) msg.obj;
+        BleByteResultCallback callback = (BleByteResultCallback) bleCommand.getCallback();
+        int status = msg.arg1;
+        byte[] value = bleCommand.getResult();
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+          mBleManager.runBleCallbackMethodInContext(
+              () -> callback.onSuccess(value), callback.isRunOnUiThread());
+        } else {
+          mBleManager.runBleCallbackMethodInContext(
+              () -> callback.onFailure(new GattException(status)),
+              callback.isRunOnUiThread());
         }
       }
 
       private void handleIntResult(Message msg) {
-        @SuppressWarnings("unchecked")
-        List<BleCommand> bleCommands = (List<BleCommand>) msg.obj;
-        Bundle bundle = msg.getData();
-        int status = bundle.getInt(BleMsg.KEY_BLE_BUNDLE_STATUS);
-        int value = bundle.getInt(BleMsg.KEY_BLE_BUNDLE_VALUE);
-        if (bleCommands != null) {
-          for (BleCommand bleCommand : bleCommands) {
-            BleIntResultCallback callback = (BleIntResultCallback) bleCommand.getCallback();
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-              mBleManager.runBleCallbackMethodInContext(
-                  () -> callback.onSuccess(value), callback.isRunOnUiThread());
-            } else {
-              mBleManager.runBleCallbackMethodInContext(
-                  () -> callback.onFailure(new GattException(status)),
-                  callback.isRunOnUiThread());
-            }
-          }
-        }
-      }
-
-      private void handleDataChange(Message msg) {
-        @SuppressWarnings("unchecked")
-        List<BleCommand> bleCommands = (List<BleCommand>) msg.obj;
-        Bundle bundle = msg.getData();
-        byte[] value = bundle.getByteArray(BleMsg.KEY_BLE_BUNDLE_VALUE);
-        if (bleCommands != null) {
-          for (BleCommand command : bleCommands) {
-            BleNotifyOrIndicateCallback callback = (BleNotifyOrIndicateCallback) command
-                .getCallback();
-            mBleManager.runBleCallbackMethodInContext(
-                () -> callback.onCharacteristicChanged(value),
-                callback.isRunOnUiThread());
-          }
+        BleCommand bleCommand = (BleCommand) msg.obj;
+        BleIntResultCallback callback = (BleIntResultCallback) bleCommand.getCallback();
+        int status = msg.arg1;
+        int value = msg.arg2;
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+          mBleManager.runBleCallbackMethodInContext(
+              () -> callback.onSuccess(value), callback.isRunOnUiThread());
+        } else {
+          mBleManager.runBleCallbackMethodInContext(
+              () -> callback.onFailure(new GattException(status)),
+              callback.isRunOnUiThread());
         }
       }
 
       private void handleStartStop(Message msg) {
-        @SuppressWarnings("unchecked")
-        List<BleCommand> bleCommands = (List<BleCommand>) msg.obj;
-
-        if (bleCommands != null) {
-          Bundle bundle = msg.getData();
-          int status = bundle.getInt(BleMsg.KEY_BLE_BUNDLE_STATUS);
-          for (BleCommand bleCommand : bleCommands) {
-            Runnable r;
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-              if ((msg.what & BleMsg.MSG_START) > 0) {
-                r = () -> ((BleNotifyOrIndicateCallback) bleCommand.getCallback()).onStart();
-              } else {
-                r = () -> ((BleNotifyOrIndicateCallback) bleCommand.getCallback()).onStop();
-              }
-            } else {
-              r = () -> bleCommand.getCallback().onFailure(new GattException(status));
-            }
-            mBleManager.runBleCallbackMethodInContext(r,
-                bleCommand.getCallback().isRunOnUiThread());
+        BleCommand bleCommand = (BleCommand) msg.obj;
+        BleNotifyOrIndicateCallback callback =
+            (BleNotifyOrIndicateCallback) bleCommand.getCallback();
+        int status = msg.arg1;
+        Runnable r;
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+          if ((msg.what & BleMsg.MSG_START) > 0) {
+            r = callback::onStart;
+          } else {
+            r = callback::onStop;
           }
+        } else {
+          r = () -> callback.onFailure(new GattException(status));
         }
+        mBleManager.runBleCallbackMethodInContext(r, callback.isRunOnUiThread());
       }
     };
 
   }
 
-  private BleConnector withUUID(UUID serviceUUID, UUID characteristicUUID, UUID descriptorUUID) {
-    if (serviceUUID != null && mBluetoothGatt != null) {
-      mGattService = mBluetoothGatt.getService(serviceUUID);
-    }
-    if (mGattService != null && characteristicUUID != null) {
-      mCharacteristic = mGattService.getCharacteristic(characteristicUUID);
-    }
-    if (mGattService != null && descriptorUUID != null) {
-      mDescriptor = mCharacteristic.getDescriptor(descriptorUUID);
+  /**
+   * Result messages of the GATT callbacks are sent to this handler
+   */
+  Handler getHandler() {
+    return mHandler;
+  }
+
+  /**
+   * Forgets the state of the previous connection, results still in flight are dropped
+   */
+  void reset() {
+    abortSplitWrite();
+    abortLongRead();
+    mHandler.removeCallbacksAndMessages(null);
+    mBluetoothGatt = null;
+    mGattIndex = null;
+    mHandle = null;
+    mCharacteristic = null;
+    mDescriptor = null;
+  }
+
+  /**
+   * Stops a running split write without notifying its callback
+   */
+  public void abortSplitWrite() {
+    if (mSplitWriter != null) {
+      mSplitWriter.abort();
+      mSplitWriter = null;
     }
-    return this;
   }
 
-  private BleConnector withUUIDString(String serviceUUID, String characteristicUUID) {
-    return withUUID(formUUID(serviceUUID), formUUID(characteristicUUID), null);
+  /**
+   * Stops a running long read without notifying its callback
+   */
+  public void abortLongRead() {
+    if (mLongReader != null) {
+      mLongReader.abort();
+      mLongReader = null;
+    }
   }
 
-  private UUID formUUID(String uuid) {
-    return uuid == null ? null : UUID.fromString(uuid);
+  /**
+   * Resolves the characteristic of the command through the attribute index of the connection.
+   *
+   * @return true if the characteristic was found
+   */
+  private boolean resolveCharacteristic(BleCommand command) {
+    mBluetoothGatt = mBleBluetooth.getBluetoothGatt();
+    mGattIndex = mBleBluetooth.getGattIndex();
+    if (mGattIndex == null) {
+      mHandle = null;
+      mCharacteristic = null;
+      return false;
+    }
+
+    CharacteristicHandle handle = command.getCharacteristicHandle();
+    if (handle == null || handle.getGattIndex() != mGattIndex) {
+      // Created from strings or obtained before a reconnect
+      handle = mGattIndex.getHandle(command.getServiceUuid(), command.getCharacteristicsUuid());
+    }
+    mHandle = handle;
+    mCharacteristic = handle == null ? null : handle.getCharacteristic();
+    return mCharacteristic != null;
   }
 
   /*------------------------------- main operation ----------------------------------- */
@@ -240,19 +266,29 @@ public class BleConnector {
    * @return true if the command has been handled, false otherwise
    */
   public boolean executeCommand(BleCommand command) {
-    withUUIDString(command.getServiceUuid(), command.getCharacteristicsUuid());
-    if (mCharacteristic == null) {
+    BleCommandType type = command.getBleCommandType();
+    if (type == BleCommandType.READ_RSSI || type == BleCommandType.SET_MTU) {
+      mBluetoothGatt = mBleBluetooth.getBluetoothGatt();
+      mGattIndex = mBleBluetooth.getGattIndex();
+      if (mGattIndex == null) {
+        return handleError(command.getCallback(), new OtherException("This device not connect!"));
+      }
+    } else if (!resolveCharacteristic(command)) {
+      command.closeSource();
       return handleError(command.getCallback(), new OtherException("Characteristics not found"));
     }
-    command.setHandler(mHandler);
 
     switch (command.getBleCommandType()) {
       case READ:
         return readCharacteristic(command);
+      case READ_LONG:
+        return readLong(command);
       case READ_DESCRIPTOR:
         return readDescriptor(command);
       case WRITE:
         return writeCharacteristic(command);
+      case WRITE_SPLIT:
+        return writeSplit(command);
       case NOTIFY:
         return enableCharacteristicNotify(command);
       case NOTIFY_STOP:
@@ -288,15 +324,17 @@ public class BleConnector {
     }
 
     BleNotifyOrIndicateCallback callback = (BleNotifyOrIndicateCallback) command.getCallback();
-    if (mBleBluetooth.addCommand(command) > 1) {
+    if (mBleBluetooth.addNotifySubscriber(mCharacteristic, callback) > 1) {
       mBleManager
           .runBleCallbackMethodInContext(callback::onStart, callback.isRunOnUiThread());
       return true;
     }
 
+    mGattIndex.registerResponse(mHandle.getIndex(), command);
     if (!setCharacteristic(mBluetoothGatt, mCharacteristic, callback,
         BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
-      mBleBluetooth.removeCommand(command);
+      mBleBluetooth.removeNotifySubscriber(mCharacteristic, callback);
+      mGattIndex.clearResponse(mHandle.getIndex(), command);
       return handleError(command.getCallback(),
           new OtherException("Could not activate notify!"));
     }
@@ -319,19 +357,16 @@ public class BleConnector {
               "Characteristic " + command.getCharacteristicsUuid() + " not support notify!"));
     }
 
-    // Remove notify callback that was subscribed
-    BleCommand notifyCommand = new BleCommand(BleCommandType.NOTIFY, command.getServiceUuid(),
-        command.getCharacteristicsUuid(), command.getDescriptorUuid(), command.getCallback());
-    if (mBleBluetooth.removeCommand(notifyCommand) >= 1) {
-      mBleManager.runBleCallbackMethodInContext(
-          () -> ((BleNotifyOrIndicateCallback) command.getCallback()).onStop(),
-          command.getCallback().isRunOnUiThread());
+    // Remove notify callback that was subscribed, keep notify on while others are subscribed
+    if (mBleBluetooth.removeNotifySubscriber(mCharacteristic, callback) >= 1) {
+      mBleManager.runBleCallbackMethodInContext(callback::onStop, callback.isRunOnUiThread());
       return true;
     }
 
-    mBleBluetooth.addCommand(command);
+    mGattIndex.registerResponse(mHandle.getIndex(), command);
     if (!setCharacteristic(mBluetoothGatt, mCharacteristic,
         callback, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+      mGattIndex.clearResponse(mHandle.getIndex(), command);
       return handleError(command.getCallback(), new OtherException(
           "Could not properly unsubscribe characteristic " + command.getCharacteristicsUuid()));
     }
@@ -357,7 +392,11 @@ public class BleConnector {
     }
 
     BluetoothGattDescriptor descriptor;
-    descriptor = characteristic.getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR);
+    if (mHandle != null && mHandle.getCharacteristic() == characteristic) {
+      descriptor = mHandle.getClientConfig();
+    } else {
+      descriptor = characteristic.getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR);
+    }
     if (descriptor == null) {
       handleError(notifyOrIndicateCallback, new OtherException("descriptor not available"));
       return false;
@@ -374,7 +413,6 @@ public class BleConnector {
 
   private boolean writeCharacteristic(
       BleCommand command) {
-    command.setHandler(mHandler);
     if (mCharacteristic == null
         || (mCharacteristic.getProperties() & (BluetoothGattCharacteristic.PROPERTY_WRITE
         | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0) {
@@ -383,9 +421,9 @@ public class BleConnector {
     }
 
     if (mCharacteristic.setValue(command.getValue())) {
-      mBleBluetooth.addCommand(command);
+      mGattIndex.registerResponse(mHandle.getIndex(), command);
       if (!mBluetoothGatt.writeCharacteristic(mCharacteristic)) {
-        mBleBluetooth.removeCommand(command);
+        mGattIndex.clearResponse(mHandle.getIndex(), command);
         return handleError(command.getCallback(),
             new OtherException("gatt writeCharacteristic fail"));
       }
@@ -396,21 +434,90 @@ public class BleConnector {
     return false;
   }
 
+  /**
+   * Starts a write that is split into chunks of the current MTU, see {@link SplitWriter}
+   */
+  private boolean writeSplit(BleCommand command) {
+    int property = command.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+        ? BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE
+        : BluetoothGattCharacteristic.PROPERTY_WRITE;
+    if ((mCharacteristic.getProperties() & property) == 0) {
+      command.closeSource();
+      return handleError(command.getCallback(),
+          new OtherException("this characteristic not support write!"));
+    }
+
+    mSplitWriter = new SplitWriter(mBleBluetooth, command, mBluetoothGatt, mHandle);
+    if (!mSplitWriter.start()) {
+      mSplitWriter = null;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Writes without waiting for the response of the previous write. The write type of the
+   * characteristic is only switched for this write and restored afterwards.
+   *
+   * @return one of {@link #WRITE_SUBMITTED}, {@link #WRITE_BUSY} or {@link #WRITE_HANDLED}
+   */
+  public int executeWriteWithoutResponse(BleCommand command) {
+    if (!resolveCharacteristic(command)) {
+      handleError(command.getCallback(), new OtherException("Characteristics not found"));
+      return WRITE_HANDLED;
+    }
+    if ((mCharacteristic.getProperties()
+        & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0) {
+      handleError(command.getCallback(),
+          new OtherException("this characteristic not support write without response!"));
+      return WRITE_HANDLED;
+    }
+
+    if (!mCharacteristic.setValue(command.getValue())) {
+      handleError(command.getCallback(),
+          new OtherException("Updates the locally stored value of this characteristic fail"));
+      return WRITE_HANDLED;
+    }
+
+    int writeType = mCharacteristic.getWriteType();
+    mCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+    boolean submitted = mBluetoothGatt.writeCharacteristic(mCharacteristic);
+    mCharacteristic.setWriteType(writeType);
+    return submitted ? WRITE_SUBMITTED : WRITE_BUSY;
+  }
+
   private boolean readCharacteristic(BleCommand command) {
     if ((mCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) <= 0) {
       return handleError(command.getCallback(),
           new OtherException("this characteristic not support read!"));
     }
 
-    mBleBluetooth.addCommand(command);
+    mGattIndex.registerResponse(mHandle.getIndex(), command);
     if (!mBluetoothGatt.readCharacteristic(mCharacteristic)) {
-      mBleBluetooth.removeCommand(command);
+      mGattIndex.clearResponse(mHandle.getIndex(), command);
       handleError(command.getCallback(), new OtherException("gatt readCharacteristic fail"));
       return true;
     }
     return false;
   }
 
+  /**
+   * Starts a read that is assembled from several chunks, see {@link LongReader}
+   */
+  private boolean readLong(BleCommand command) {
+    if ((mCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) <= 0) {
+      return handleError(command.getCallback(),
+          new OtherException("this characteristic not support read!"));
+    }
+
+    mLongReader = new LongReader(mBleBluetooth, command, mBluetoothGatt, mHandle);
+    if (!mLongReader.start()) {
+      mLongReader = null;
+      return true;
+    }
+    return false;
+  }
+
   private boolean readDescriptor(BleCommand command) {
     mDescriptor = mCharacteristic.getDescriptor(UUID.fromString(command.getDescriptorUuid()));
     if (mDescriptor == null) {
@@ -423,28 +530,27 @@ public class BleConnector {
 //          new OtherException("this descriptor not support read!"));
 //    }
 
-    mBleBluetooth.addCommand(command);
+    mGattIndex.registerResponse(mHandle.getIndex(), command);
     if (!mBluetoothGatt.readDescriptor(mDescriptor)) {
-      mBleBluetooth.removeCommand(command);
+      mGattIndex.clearResponse(mHandle.getIndex(), command);
       return handleError(command.getCallback(), new OtherException("gatt readDescriptor fail"));
     }
     return false;
   }
 
   private boolean readRemoteRssi(BleCommand command) {
-    mBleBluetooth.addCommand(command);
+    mGattIndex.registerResponse(mGattIndex.getRssiSlot(), command);
     if (!mBluetoothGatt.readRemoteRssi()) {
-      mBleBluetooth.removeCommand(command);
+      mGattIndex.clearResponse(mGattIndex.getRssiSlot(), command);
       return handleError(command.getCallback(), new OtherException("gatt readRemoteRssi fail"));
     }
     return false;
   }
 
   private boolean setMtu(BleCommand command) {
-    command.setHandler(mHandler);
-    mBleBluetooth.addCommand(command);
+    mGattIndex.registerResponse(mGattIndex.getMtuSlot(), command);
     if (!mBluetoothGatt.requestMtu(command.getValueInt())) {
-      mBleBluetooth.removeCommand(command);
+      mGattIndex.clearResponse(mGattIndex.getMtuSlot(), command);
       return handleError(command.getCallback(), new OtherException("gatt requestMtu fail"));
     }
     return false;
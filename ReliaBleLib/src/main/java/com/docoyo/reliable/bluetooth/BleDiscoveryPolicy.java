@@ -0,0 +1,101 @@
+package com.docoyo.reliable.bluetooth;
+
+
+import com.docoyo.reliable.BleManager;
+import com.docoyo.reliable.data.BleDevice;
+import com.docoyo.reliable.data.BleDiscoveryMode;
+import com.docoyo.reliable.utils.BleLog;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the delay before service discovery. A delay set for a single device always wins,
+ * otherwise {@link BleManager#getDiscoveryMode()} decides. In {@link BleDiscoveryMode#ADAPTIVE}
+ * mode the delay is learned per device model, using the advertised name as model: a discovery that
+ * needed retries stores the delay that finally worked, a discovery that succeeded right away halves
+ * the stored delay again.
+ * <p>
+ * A failed discovery is retried up to {@link BleManager#getDiscoverRetryCount()} times, each time
+ * with a doubled delay, in every mode.
+ */
+public class BleDiscoveryPolicy {
+
+  static final long MIN_RETRY_DELAY = 100;
+  static final long MAX_DELAY = 1000;
+  private static final long MIN_LEARNED_DELAY = 25;
+
+  private final ConcurrentHashMap<String, Long> deviceDelays = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Long> learnedDelays = new ConcurrentHashMap<>();
+
+  /**
+   * @param delay delay for this device, negative to remove it
+   */
+  public void setDeviceDelay(BleDevice bleDevice, long delay) {
+    if (delay < 0) {
+      deviceDelays.remove(bleDevice.getKey());
+    } else {
+      deviceDelays.put(bleDevice.getKey(), delay);
+    }
+  }
+
+  /**
+   * Delay before the first discovery attempt of the given device
+   */
+  public long getDelay(BleDevice bleDevice) {
+    Long delay = deviceDelays.get(bleDevice.getKey());
+    if (delay != null) {
+      return delay;
+    }
+    switch (BleManager.getInstance().getDiscoveryMode()) {
+      case IMMEDIATE:
+        return 0;
+      case FIXED:
+        return BleManager.getInstance().getDiscoveryDelay();
+      default:
+        Long learned = learnedDelays.get(getModel(bleDevice));
+        return learned != null ? learned : 0;
+    }
+  }
+
+  /**
+   * Delay before retrying a failed discovery that was started after the given delay
+   */
+  public long getRetryDelay(long delay) {
+    return Math.min(MAX_DELAY, Math.max(MIN_RETRY_DELAY, delay * 2));
+  }
+
+  /**
+   * Records a successful discovery.
+   *
+   * @param delay the delay of the attempt that succeeded
+   * @param retries number of failed attempts before
+   */
+  void onDiscovered(BleDevice bleDevice, long delay, int retries) {
+    if (BleManager.getInstance().getDiscoveryMode() != BleDiscoveryMode.ADAPTIVE
+        || deviceDelays.containsKey(bleDevice.getKey())) {
+      return;
+    }
+    String model = getModel(bleDevice);
+    if (retries > 0) {
+      BleLog.i("learned discovery delay " + delay + " for " + model);
+      learnedDelays.put(model, delay);
+    } else if (delay > 0) {
+      long decayed = delay / 2;
+      if (decayed < MIN_LEARNED_DELAY) {
+        learnedDelays.remove(model);
+      } else {
+        learnedDelays.put(model, decayed);
+      }
+    }
+  }
+
+  public void clear() {
+    deviceDelays.clear();
+    learnedDelays.clear();
+  }
+
+  private static String getModel(BleDevice bleDevice) {
+    String name = bleDevice.getName();
+    return name != null ? name : "";
+  }
+}
@@ -0,0 +1,111 @@
+package com.docoyo.reliable.bluetooth;
+
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import com.docoyo.reliable.utils.BleTimingWheel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One background event loop shard. Every {@link BleBluetooth} is pinned to one shard for its
+ * lifetime, so all work of a device stays ordered on one thread while several devices are spread
+ * over the shards. The counters give an idea of the load of the shard.
+ */
+public class BleEventLoop {
+
+  private final int index;
+  private final HandlerThread handlerThread;
+  private final Looper looper;
+  private final BleTimingWheel timingWheel;
+
+  private final AtomicInteger deviceCount = new AtomicInteger();
+  private final AtomicLong commandCount = new AtomicLong();
+  private final AtomicLong notificationCount = new AtomicLong();
+
+  public BleEventLoop(int index) {
+    this.index = index;
+    handlerThread = new HandlerThread("BleBgLooper-" + index);
+    handlerThread.start();
+    looper = handlerThread.getLooper();
+    timingWheel = new BleTimingWheel(looper);
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public Looper getLooper() {
+    return looper;
+  }
+
+  public BleTimingWheel getTimingWheel() {
+    return timingWheel;
+  }
+
+  /**
+   * Number of devices currently pinned to this shard
+   */
+  public int getDeviceCount() {
+    return deviceCount.get();
+  }
+
+  /**
+   * Number of commands executed on this shard so far
+   */
+  public long getCommandCount() {
+    return commandCount.get();
+  }
+
+  /**
+   * Number of notifications dispatched by devices of this shard so far
+   */
+  public long getNotificationCount() {
+    return notificationCount.get();
+  }
+
+  /**
+   * Number of operate and connect timeouts pending on this shard
+   */
+  public int getPendingTimeouts() {
+    return timingWheel.getPendingCount();
+  }
+
+  /**
+   * Counts a device pinned to this shard
+   */
+  public void acquire() {
+    deviceCount.incrementAndGet();
+  }
+
+  /**
+   * Counts a device that left this shard
+   */
+  public void release() {
+    deviceCount.decrementAndGet();
+  }
+
+  public void countCommand() {
+    commandCount.incrementAndGet();
+  }
+
+  void countNotification() {
+    notificationCount.incrementAndGet();
+  }
+
+  public void quit() {
+    handlerThread.quitSafely();
+  }
+
+  @Override
+  public String toString() {
+    return "BleEventLoop{" +
+        "index=" + index +
+        ", devices=" + deviceCount.get() +
+        ", commands=" + commandCount.get() +
+        ", notifications=" + notificationCount.get() +
+        ", pendingTimeouts=" + timingWheel.getPendingCount() +
+        '}';
+  }
+}
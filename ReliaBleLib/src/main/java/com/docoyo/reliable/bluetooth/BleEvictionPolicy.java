@@ -0,0 +1,57 @@
+package com.docoyo.reliable.bluetooth;
+
+
+import java.util.Collection;
+
+/**
+ * Decides which connected device is disconnected when a new connection exceeds {@link
+ * com.docoyo.reliable.BleManager#getMaxConnectCount()}. Pinned devices and the device that has just
+ * connected are never offered as candidates.
+ */
+public interface BleEvictionPolicy {
+
+  /**
+   * @param candidates connected devices that may be evicted, never empty
+   * @return the device to disconnect, or null to keep all connections
+   */
+  BleBluetooth selectVictim(Collection<BleBluetooth> candidates);
+
+  /**
+   * Evicts the device that was least recently looked up through the API
+   */
+  BleEvictionPolicy LEAST_RECENTLY_ACCESSED = candidates -> {
+    BleBluetooth victim = null;
+    for (BleBluetooth bleBluetooth : candidates) {
+      if (victim == null || bleBluetooth.getLastAccessTime() < victim.getLastAccessTime()) {
+        victim = bleBluetooth;
+      }
+    }
+    return victim;
+  };
+
+  /**
+   * Evicts the device with the oldest GATT traffic
+   */
+  BleEvictionPolicy LEAST_RECENT_TRAFFIC = candidates -> {
+    BleBluetooth victim = null;
+    for (BleBluetooth bleBluetooth : candidates) {
+      if (victim == null || bleBluetooth.getLastTrafficTime() < victim.getLastTrafficTime()) {
+        victim = bleBluetooth;
+      }
+    }
+    return victim;
+  };
+
+  /**
+   * Evicts the device with the fewest GATT operations and notifications since it connected
+   */
+  BleEvictionPolicy LEAST_FREQUENT_TRAFFIC = candidates -> {
+    BleBluetooth victim = null;
+    for (BleBluetooth bleBluetooth : candidates) {
+      if (victim == null || bleBluetooth.getTrafficCount() < victim.getTrafficCount()) {
+        victim = bleBluetooth;
+      }
+    }
+    return victim;
+  };
+}
@@ -0,0 +1,199 @@
+package com.docoyo.reliable.bluetooth;
+
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Immutable index of the attributes of a connection, built once services have been discovered.
+ * UUID strings are looked up as given and, failing that, in lower case, so the strings the
+ * application passes for every command are never parsed. When a peripheral exposes a
+ * characteristic UUID more than once, lookups by UUID return the first one, the others are still
+ * reachable through {@link #getHandles()}.
+ * <p>
+ * The index also carries the response slots of the connection: one per characteristic, addressed
+ * by {@link CharacteristicHandle#getIndex()}, plus one for RSSI and one for MTU requests. A command
+ * waiting for its GATT response sits in the slot, the binder thread finds it by the instance id of
+ * the characteristic and claims it atomically. Since the slots are published together with the
+ * index, a response never sees the slots of another connection.
+ */
+public final class BleGattIndex {
+
+  static final UUID UUID_CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR = UUID
+      .fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+  private final CharacteristicHandle[] handles;
+  private final int[] instanceIds;
+  private final int[] instanceHandles;
+  private final AtomicReferenceArray<BleCommand> responseSlots;
+  private final HashMap<String, HashMap<String, CharacteristicHandle>> byString = new HashMap<>();
+  private final HashMap<UUID, HashMap<UUID, CharacteristicHandle>> byUuid = new HashMap<>();
+
+  BleGattIndex(BluetoothGatt gatt) {
+    List<CharacteristicHandle> list = new ArrayList<>();
+    for (BluetoothGattService service : gatt.getServices()) {
+      HashMap<UUID, CharacteristicHandle> serviceByUuid = byUuid.get(service.getUuid());
+      if (serviceByUuid == null) {
+        serviceByUuid = new HashMap<>();
+        byUuid.put(service.getUuid(), serviceByUuid);
+      }
+      String serviceKey = service.getUuid().toString();
+      HashMap<String, CharacteristicHandle> serviceByString = byString.get(serviceKey);
+      if (serviceByString == null) {
+        serviceByString = new HashMap<>();
+        byString.put(serviceKey, serviceByString);
+      }
+
+      for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+        CharacteristicHandle handle = new CharacteristicHandle(this, list.size(), characteristic,
+            characteristic.getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR));
+        list.add(handle);
+        if (!serviceByUuid.containsKey(characteristic.getUuid())) {
+          serviceByUuid.put(characteristic.getUuid(), handle);
+          serviceByString.put(handle.getCharacteristicUuid(), handle);
+        }
+      }
+    }
+    handles = list.toArray(new CharacteristicHandle[0]);
+
+    // Instance ids sorted for binary search, the position of the handle in the low bits
+    long[] sorted = new long[handles.length];
+    for (int i = 0; i < handles.length; i++) {
+      sorted[i] = ((long) handles[i].getCharacteristic().getInstanceId() << 32) | i;
+    }
+    Arrays.sort(sorted);
+    instanceIds = new int[sorted.length];
+    instanceHandles = new int[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      instanceIds[i] = (int) (sorted[i] >> 32);
+      instanceHandles[i] = (int) sorted[i];
+    }
+    responseSlots = new AtomicReferenceArray<>(handles.length + 2);
+  }
+
+  /**
+   * Finds the handle of a characteristic reported by a GATT callback, without allocating.
+   *
+   * @return the handle or null if the characteristic is not part of this index
+   */
+  public CharacteristicHandle getHandle(BluetoothGattCharacteristic characteristic) {
+    int id = characteristic.getInstanceId();
+    int pos = Arrays.binarySearch(instanceIds, id);
+    if (pos >= 0) {
+      while (pos > 0 && instanceIds[pos - 1] == id) {
+        pos--;
+      }
+      // Instance ids are only unique per UUID on older stacks
+      for (; pos < instanceIds.length && instanceIds[pos] == id; pos++) {
+        CharacteristicHandle handle = handles[instanceHandles[pos]];
+        if (handle.getCharacteristic() == characteristic) {
+          return handle;
+        }
+      }
+    }
+    for (CharacteristicHandle handle : handles) {
+      if (handle.getCharacteristic() == characteristic) {
+        return handle;
+      }
+    }
+    return null;
+  }
+
+  int getRssiSlot() {
+    return handles.length;
+  }
+
+  int getMtuSlot() {
+    return handles.length + 1;
+  }
+
+  /**
+   * Parks a command until its response arrives, replacing a command that timed out
+   */
+  void registerResponse(int slot, BleCommand command) {
+    responseSlots.set(slot, command);
+  }
+
+  /**
+   * Removes the command again if it could not be submitted
+   */
+  void clearResponse(int slot, BleCommand command) {
+    responseSlots.compareAndSet(slot, command, null);
+  }
+
+  /**
+   * @return the command waiting in the slot if it is of the given type, it is left in place
+   */
+  BleCommand peekResponse(int slot, BleCommand.BleCommandType type) {
+    BleCommand command = responseSlots.get(slot);
+    return command != null && command.getBleCommandType() == type ? command : null;
+  }
+
+  /**
+   * Takes the command waiting in the slot if it is of the given type
+   *
+   * @return the command or null if no such command is waiting
+   */
+  BleCommand claimResponse(int slot, BleCommand.BleCommandType type) {
+    BleCommand command = responseSlots.get(slot);
+    if (command != null && command.getBleCommandType() == type
+        && responseSlots.compareAndSet(slot, command, null)) {
+      return command;
+    }
+    return null;
+  }
+
+  /**
+   * @return the handle or null if the characteristic does not exist
+   */
+  public CharacteristicHandle getHandle(String serviceUuid, String characteristicUuid) {
+    if (serviceUuid == null || characteristicUuid == null) {
+      return null;
+    }
+    HashMap<String, CharacteristicHandle> service = byString.get(serviceUuid);
+    if (service == null) {
+      service = byString.get(serviceUuid.toLowerCase(Locale.ROOT));
+      if (service == null) {
+        return null;
+      }
+    }
+    CharacteristicHandle handle = service.get(characteristicUuid);
+    if (handle == null) {
+      handle = service.get(characteristicUuid.toLowerCase(Locale.ROOT));
+    }
+    return handle;
+  }
+
+  /**
+   * @return the handle or null if the characteristic does not exist
+   */
+  public CharacteristicHandle getHandle(UUID serviceUuid, UUID characteristicUuid) {
+    HashMap<UUID, CharacteristicHandle> service = byUuid.get(serviceUuid);
+    return service == null ? null : service.get(characteristicUuid);
+  }
+
+  /**
+   * @return the handle at the given position, see {@link CharacteristicHandle#getIndex()}
+   */
+  public CharacteristicHandle getHandle(int index) {
+    return handles[index];
+  }
+
+  public int size() {
+    return handles.length;
+  }
+
+  public List<CharacteristicHandle> getHandles() {
+    return Collections.unmodifiableList(Arrays.asList(handles));
+  }
+}
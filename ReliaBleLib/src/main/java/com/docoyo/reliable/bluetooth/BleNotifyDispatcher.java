@@ -0,0 +1,139 @@
+package com.docoyo.reliable.bluetooth;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.view.Choreographer;
+
+import com.docoyo.reliable.BleManager;
+import com.docoyo.reliable.callback.BleNotifyBufferCallback;
+import com.docoyo.reliable.callback.BleNotifyFrameCallback;
+import com.docoyo.reliable.callback.BleNotifyOrIndicateCallback;
+import com.docoyo.reliable.data.BleFrameDecoder;
+import com.docoyo.reliable.data.BleMsg;
+import com.docoyo.reliable.data.BleNotifyRingBuffer;
+import com.docoyo.reliable.utils.BleBufferPool;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Delivers notifications of one characteristic to one subscriber. It is created once per
+ * subscription and bound to the thread the callback expects, so a notification only costs a
+ * pooled {@link Message} on its way from the binder thread to the subscriber.
+ * <p>
+ * For a {@link BleNotifyBufferCallback} the payload is copied into the ring buffer on the binder
+ * thread and the subscriber is only signalled when the buffer received data since the last signal.
+ * <p>
+ * For a {@link BleNotifyFrameCallback} the dispatcher is bound to the looper of the device, the
+ * notifications are decoded there and only the complete frames are handed to the thread of the
+ * subscriber.
+ * <p>
+ * With frame batching the payloads are collected and handed to the UI thread once per display
+ * frame. Two lists are swapped between collecting and delivering, so batching does not allocate
+ * once they have grown to the usual batch size.
+ */
+class BleNotifyDispatcher extends Handler implements Choreographer.FrameCallback,
+    BleFrameDecoder.FrameSink {
+
+  private final BleNotifyOrIndicateCallback callback;
+  private final BleNotifyRingBuffer buffer;
+  private final BleFrameDecoder decoder;
+  private final boolean frameBatching;
+
+  private ArrayList<byte[]> pendingBatch;
+  private ArrayList<byte[]> deliveredBatch;
+  private boolean frameScheduled;
+
+  BleNotifyDispatcher(BleNotifyOrIndicateCallback callback, Looper bgLooper) {
+    super(callback.isRunOnUiThread() && !(callback instanceof BleNotifyFrameCallback)
+        ? Looper.getMainLooper() : bgLooper);
+    this.callback = callback;
+    this.buffer = callback instanceof BleNotifyBufferCallback
+        ? ((BleNotifyBufferCallback) callback).getBuffer() : null;
+    this.decoder = callback instanceof BleNotifyFrameCallback
+        ? ((BleNotifyFrameCallback) callback).getDecoder() : null;
+    if (decoder != null) {
+      decoder.reset();
+    }
+    this.frameBatching = buffer == null && decoder == null && callback.isRunOnUiThread()
+        && callback.isFrameBatching();
+    if (frameBatching) {
+      pendingBatch = new ArrayList<>();
+      deliveredBatch = new ArrayList<>();
+    }
+  }
+
+  BleNotifyOrIndicateCallback getCallback() {
+    return callback;
+  }
+
+  void dispatch(byte[] value) {
+    if (buffer != null) {
+      buffer.write(value);
+      if (buffer.requestSignal()) {
+        sendEmptyMessage(BleMsg.MSG_CHA_NOTIFY_DATA_CHANGE);
+      }
+      return;
+    }
+    if (frameBatching) {
+      synchronized (this) {
+        pendingBatch.add(value);
+        if (frameScheduled) {
+          return;
+        }
+        frameScheduled = true;
+      }
+      sendEmptyMessage(BleMsg.MSG_CHA_NOTIFY_FRAME);
+      return;
+    }
+    sendMessage(obtainMessage(BleMsg.MSG_CHA_NOTIFY_DATA_CHANGE, value));
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    ArrayList<byte[]> batch;
+    synchronized (this) {
+      batch = pendingBatch;
+      pendingBatch = deliveredBatch;
+      deliveredBatch = batch;
+      frameScheduled = false;
+    }
+    if (!batch.isEmpty()) {
+      callback.onCharacteristicChangedBatch(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+   * A complete frame, runs on the looper of the device
+   */
+  @Override
+  public void onFrame(ByteBuffer frame) {
+    BleNotifyFrameCallback frameCallback = (BleNotifyFrameCallback) callback;
+    BleManager.getInstance().runBleCallbackMethodInContext(() -> {
+      try {
+        frameCallback.onFrame(frame);
+      } finally {
+        BleBufferPool.release(frame);
+      }
+    }, frameCallback.isRunOnUiThread());
+  }
+
+  @Override
+  public void handleMessage(Message msg) {
+    if (msg.what == BleMsg.MSG_CHA_NOTIFY_FRAME) {
+      // The choreographer is bound to the UI thread, so the frame callback is posted from here
+      Choreographer.getInstance().postFrameCallback(this);
+    } else if (msg.what == BleMsg.MSG_CHA_NOTIFY_DATA_CHANGE) {
+      if (buffer != null) {
+        buffer.clearSignal();
+        ((BleNotifyBufferCallback) callback).onDataAvailable(buffer);
+      } else if (decoder != null) {
+        decoder.decode((byte[]) msg.obj, this);
+      } else {
+        callback.onCharacteristicChanged((byte[]) msg.obj);
+      }
+    }
+  }
+
+}
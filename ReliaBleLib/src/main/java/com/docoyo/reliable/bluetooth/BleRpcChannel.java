@@ -0,0 +1,323 @@
+package com.docoyo.reliable.bluetooth;
+
+
+import com.docoyo.reliable.BleManager;
+import com.docoyo.reliable.callback.BleNotifyFrameCallback;
+import com.docoyo.reliable.callback.BleRpcCallback;
+import com.docoyo.reliable.callback.BleWriteCallback;
+import com.docoyo.reliable.data.BleDevice;
+import com.docoyo.reliable.data.BleFrameDecoder;
+import com.docoyo.reliable.data.BlePriority;
+import com.docoyo.reliable.exception.BleException;
+import com.docoyo.reliable.exception.OtherException;
+import com.docoyo.reliable.exception.TimeoutException;
+import com.docoyo.reliable.utils.BleLog;
+import com.docoyo.reliable.utils.BleTimingWheel;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Request/response channel over a write and a notify characteristic. Every request is prefixed
+ * with a correlation id of {@link #setIdSize(int)} bytes (little-endian) and the device is expected
+ * to start its reply with the same id. Any number of requests up to the id space can be
+ * outstanding, replies are matched by id in whatever order they arrive.
+ * <p>
+ * Replies are read from the notify characteristic through a {@link BleNotifyFrameCallback}, so a
+ * reply may span several notifications when a {@link BleFrameDecoder} is set. Every request has a
+ * deadline on the timing wheel of the device, a request that misses it fails with a {@link
+ * TimeoutException} and a late reply is dropped.
+ */
+public class BleRpcChannel {
+
+  public static final long DEFAULT_DEADLINE = 5000;
+
+  private final BleDevice bleDevice;
+  private final String serviceUuid;
+  private final String writeUuid;
+  private final String notifyUuid;
+
+  private int idSize = 1;
+  private long defaultDeadline = DEFAULT_DEADLINE;
+  private boolean writeWithoutResponse;
+  private BleFrameDecoder decoder = BleFrameDecoder.perNotification();
+  private BlePriority priority = BlePriority.INTERACTIVE;
+
+  private final Map<Integer, Call> pending = new ConcurrentHashMap<>();
+  private final Object idLock = new Object();
+  private int nextId;
+
+  private volatile ReplyCallback replyCallback;
+
+  public BleRpcChannel(BleDevice bleDevice, String uuidService, String uuidWrite,
+      String uuidNotify) {
+    this.bleDevice = bleDevice;
+    this.serviceUuid = uuidService;
+    this.writeUuid = uuidWrite;
+    this.notifyUuid = uuidNotify;
+  }
+
+  /**
+   * Set the size of the correlation id, 1 or 2 bytes
+   *
+   * @return BleRpcChannel
+   */
+  public BleRpcChannel setIdSize(int idSize) {
+    if (idSize != 1 && idSize != 2) {
+      throw new IllegalArgumentException("idSize must be 1 or 2");
+    }
+    this.idSize = idSize;
+    return this;
+  }
+
+  /**
+   * Set the deadline of requests that do not specify one
+   *
+   * @return BleRpcChannel
+   */
+  public BleRpcChannel setDefaultDeadline(long defaultDeadline) {
+    this.defaultDeadline = defaultDeadline;
+    return this;
+  }
+
+  /**
+   * Send the requests as writes without response
+   *
+   * @return BleRpcChannel
+   */
+  public BleRpcChannel setWriteWithoutResponse(boolean writeWithoutResponse) {
+    this.writeWithoutResponse = writeWithoutResponse;
+    return this;
+  }
+
+  /**
+   * Set the decoder that reassembles replies spanning several notifications, every notification
+   * is one reply by default. Set it before {@link #open()}.
+   *
+   * @return BleRpcChannel
+   */
+  public BleRpcChannel setDecoder(BleFrameDecoder decoder) {
+    if (decoder != null) {
+      this.decoder = decoder;
+    }
+    return this;
+  }
+
+  /**
+   * Set the queue priority of the requests
+   *
+   * @return BleRpcChannel
+   */
+  public BleRpcChannel setPriority(BlePriority priority) {
+    if (priority != null) {
+      this.priority = priority;
+    }
+    return this;
+  }
+
+  /**
+   * Subscribes to the notify characteristic. Requests may be sent right away, the subscription is
+   * queued before them.
+   */
+  public synchronized void open() {
+    if (replyCallback == null) {
+      replyCallback = new ReplyCallback(decoder);
+      BleManager.getInstance().notify(bleDevice, serviceUuid, notifyUuid, replyCallback);
+    }
+  }
+
+  /**
+   * Unsubscribes and fails all outstanding requests
+   */
+  public synchronized void close() {
+    if (replyCallback != null) {
+      BleManager.getInstance().stopNotify(bleDevice, serviceUuid, notifyUuid, replyCallback);
+      replyCallback = null;
+    }
+    failAll(new OtherException("RPC channel closed"));
+  }
+
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  public void call(byte[] request, BleRpcCallback callback) {
+    call(request, defaultDeadline, callback);
+  }
+
+  /**
+   * Sends the request and waits up to {@code deadline} milliseconds for the reply
+   */
+  public void call(byte[] request, long deadline, BleRpcCallback callback) {
+    if (callback == null) {
+      throw new IllegalArgumentException("BleRpcCallback can not be Null!");
+    }
+    BleBluetooth bleBluetooth =
+        BleManager.getInstance().getMultipleBluetoothController().getBleBluetooth(bleDevice);
+    if (bleBluetooth == null) {
+      callback.onFailure(new OtherException("This device not connect!"));
+      return;
+    }
+    if (replyCallback == null) {
+      callback.onFailure(new OtherException("RPC channel not open"));
+      return;
+    }
+
+    Call call = new Call(callback);
+    int id = register(call);
+    if (id < 0) {
+      callback.onFailure(new OtherException("Too many outstanding requests"));
+      return;
+    }
+    call.timeout = bleBluetooth.getEventLoop().getTimingWheel()
+        .schedule(() -> fail(id, new TimeoutException()), deadline);
+
+    byte[] value = new byte[idSize + (request == null ? 0 : request.length)];
+    value[0] = (byte) id;
+    if (idSize == 2) {
+      value[1] = (byte) (id >> 8);
+    }
+    if (request != null) {
+      System.arraycopy(request, 0, value, idSize, request.length);
+    }
+
+    // Write results stay off the UI thread, the app only hears from the rpc callback
+    BleWriteCallback writeCallback = new BleWriteCallback() {
+      @Override
+      public boolean isRunOnUiThread() {
+        return false;
+      }
+
+      @Override
+      public void onWriteSuccess(int current, int total, byte[] justWrite) {
+      }
+
+      @Override
+      public void onFailure(BleException exception) {
+        fail(id, exception);
+      }
+    };
+    if (writeWithoutResponse) {
+      BleManager.getInstance().writeWithoutResponse(bleDevice, serviceUuid, writeUuid, value,
+          priority, writeCallback);
+    } else {
+      BleManager.getInstance().write(bleDevice, serviceUuid, writeUuid, value, priority,
+          writeCallback);
+    }
+  }
+
+  /**
+   * Assigns the next free id to the call
+   *
+   * @return the id or -1 if all ids are in use
+   */
+  private int register(Call call) {
+    int space = 1 << (8 * idSize);
+    synchronized (idLock) {
+      for (int i = 0; i < space; i++) {
+        int id = nextId;
+        nextId = (nextId + 1) % space;
+        if (pending.putIfAbsent(id, call) == null) {
+          return id;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private void fail(int id, BleException exception) {
+    Call call = pending.remove(id);
+    if (call != null) {
+      call.fail(exception);
+    }
+  }
+
+  private void failAll(BleException exception) {
+    List<Integer> ids = new ArrayList<>(pending.keySet());
+    for (Integer id : ids) {
+      fail(id, exception);
+    }
+  }
+
+  private void onReply(ByteBuffer frame) {
+    if (frame.remaining() < idSize) {
+      BleLog.w("Dropping reply without correlation id");
+      return;
+    }
+    int id = frame.get() & 0xFF;
+    if (idSize == 2) {
+      id |= (frame.get() & 0xFF) << 8;
+    }
+    Call call = pending.remove(id);
+    if (call == null) {
+      BleLog.w("Dropping reply " + id + " without a pending request");
+      return;
+    }
+    byte[] data = new byte[frame.remaining()];
+    frame.get(data);
+    call.complete(data);
+  }
+
+  private static class Call {
+
+    private final BleRpcCallback callback;
+    private volatile BleTimingWheel.Timeout timeout;
+
+    Call(BleRpcCallback callback) {
+      this.callback = callback;
+    }
+
+    void complete(byte[] data) {
+      cancelTimeout();
+      BleManager.getInstance().runBleCallbackMethodInContext(
+          () -> callback.onResponse(data), callback.isRunOnUiThread());
+    }
+
+    void fail(BleException exception) {
+      cancelTimeout();
+      BleManager.getInstance().runBleCallbackMethodInContext(
+          () -> callback.onFailure(exception), callback.isRunOnUiThread());
+    }
+
+    private void cancelTimeout() {
+      BleTimingWheel.Timeout t = timeout;
+      if (t != null) {
+        t.cancel();
+      }
+    }
+  }
+
+  private class ReplyCallback extends BleNotifyFrameCallback {
+
+    ReplyCallback(BleFrameDecoder decoder) {
+      super(decoder);
+    }
+
+    @Override
+    public void onStart() {
+    }
+
+    @Override
+    public void onStop() {
+    }
+
+    @Override
+    public void onFrame(ByteBuffer frame) {
+      onReply(frame);
+    }
+
+    @Override
+    public void onFailure(BleException exception) {
+      BleLog.e("RPC channel subscription failed: " + exception);
+      // Without replies the channel is closed until open() subscribes again
+      synchronized (BleRpcChannel.this) {
+        if (replyCallback == this) {
+          replyCallback = null;
+        }
+      }
+      failAll(exception);
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package com.docoyo.reliable.bluetooth;
+
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import com.docoyo.reliable.data.BleWriteSource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Reads a {@link BleWriteSource} that may block ahead of a split write on a shared I/O thread, so
+ * a slow stream never stalls the event loop the device shares with others. Two blocks of {@link
+ * BleWriteSource#READ_AHEAD_SIZE} bytes alternate between being filled on the I/O thread and being
+ * consumed on the looper of the device. Every completed fill is reported on that looper.
+ */
+class BleSourcePrefetcher {
+
+  private static final int BLOCK_COUNT = 2;
+
+  private static Handler ioHandler;
+
+  private final BleWriteSource source;
+  private final Handler handler;
+  private final Runnable onReady;
+  private final Runnable fillRunnable = this::fill;
+  private final ArrayDeque<ByteBuffer> filled = new ArrayDeque<>(BLOCK_COUNT);
+  private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>(BLOCK_COUNT);
+
+  private int available;
+  private boolean filling;
+  private boolean ended;
+  private boolean closed;
+  private IOException error;
+
+  /**
+   * @param onReady run on the looper whenever more data has been read ahead
+   */
+  BleSourcePrefetcher(BleWriteSource source, Looper looper, Runnable onReady) {
+    this.source = source;
+    this.handler = new Handler(looper);
+    this.onReady = onReady;
+    for (int i = 0; i < BLOCK_COUNT; i++) {
+      free.add(ByteBuffer.allocate(BleWriteSource.READ_AHEAD_SIZE));
+    }
+  }
+
+  private static synchronized Handler getIoHandler() {
+    if (ioHandler == null) {
+      HandlerThread ioThread = new HandlerThread("BleSourceReader");
+      ioThread.start();
+      ioHandler = new Handler(ioThread.getLooper());
+    }
+    return ioHandler;
+  }
+
+  synchronized void start() {
+    scheduleFill();
+  }
+
+  /**
+   * @return true if {@code length} bytes or the rest of the source can be read without waiting
+   */
+  synchronized boolean isReady(int length) {
+    return available >= length || ended;
+  }
+
+  /**
+   * Copies up to {@code length} bytes that have been read ahead and refills the free blocks
+   *
+   * @return the number of bytes copied, 0 at the end of the source
+   */
+  synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+    int count = 0;
+    while (count < length && !filled.isEmpty()) {
+      ByteBuffer block = filled.peek();
+      int n = Math.min(length - count, block.remaining());
+      block.get(buffer, offset + count, n);
+      count += n;
+      if (!block.hasRemaining()) {
+        filled.poll();
+        block.clear();
+        free.add(block);
+      }
+    }
+    if (count == 0 && error != null) {
+      throw error;
+    }
+    available -= count;
+    scheduleFill();
+    return count;
+  }
+
+  /**
+   * Stops reading ahead, the source itself is closed by its command
+   */
+  synchronized void close() {
+    closed = true;
+    getIoHandler().removeCallbacks(fillRunnable);
+    handler.removeCallbacks(onReady);
+  }
+
+  private void scheduleFill() {
+    if (!filling && !ended && !closed && !free.isEmpty()) {
+      filling = true;
+      getIoHandler().post(fillRunnable);
+    }
+  }
+
+  /**
+   * Runs on the I/O thread
+   */
+  private void fill() {
+    ByteBuffer block;
+    synchronized (this) {
+      if (closed) {
+        filling = false;
+        return;
+      }
+      block = free.poll();
+    }
+
+    int count = 0;
+    IOException exception = null;
+    try {
+      count = source.read(block.array(), 0, block.capacity());
+    } catch (IOException e) {
+      exception = e;
+    }
+
+    synchronized (this) {
+      filling = false;
+      if (closed) {
+        return;
+      }
+      if (count > 0) {
+        block.limit(count);
+        filled.add(block);
+        available += count;
+      } else {
+        free.add(block);
+      }
+      // A read only comes back short at the end of the source
+      if (exception != null || count < block.capacity()) {
+        error = exception;
+        ended = true;
+      }
+      scheduleFill();
+    }
+    handler.post(onReady);
+  }
+}
@@ -0,0 +1,385 @@
+package com.docoyo.reliable.bluetooth;
+
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.docoyo.reliable.BleManager;
+import com.docoyo.reliable.bluetooth.BleCommand.BleCommandType;
+import com.docoyo.reliable.callback.BleTransferCallback;
+import com.docoyo.reliable.callback.BleWriteCallback;
+import com.docoyo.reliable.data.BleDevice;
+import com.docoyo.reliable.data.BlePriority;
+import com.docoyo.reliable.exception.BleException;
+import com.docoyo.reliable.exception.OtherException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chunked transfer of a large payload that survives failed chunks and lost connections. The
+ * payload is cut into chunks of the current MTU which are queued as ordinary write commands
+ * through {@link BleBluetooth#enqueueCommand(BleCommand)}, up to {@link #setWindow(int)} of them at
+ * a time.
+ * <p>
+ * Every confirmed chunk is marked as acknowledged. A chunk that fails is queued again on its own,
+ * the chunks around it are not sent a second time. The checkpoint is the offset up to which all
+ * chunks have been acknowledged. When the connection is lost the transfer pauses, and {@link
+ * #start()} after the reconnect continues at the checkpoint, with the chunk size of the new
+ * connection. The checkpoint can be persisted and handed to {@link #setCheckpoint(long)} to resume
+ * in a later session.
+ * <p>
+ * With more than one chunk in flight a retransmitted chunk arrives after its successors. Enable
+ * {@link #setOffsetHeader(boolean)} in that case, every chunk is then prefixed with its offset as
+ * four byte little-endian integer so the peripheral can place it. Writes without response are
+ * only confirmed by the local stack, not by the peripheral.
+ */
+public class BleTransfer {
+
+  public static final int DEFAULT_WINDOW = 1;
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  public static final int OFFSET_HEADER_SIZE = 4;
+
+  public enum State {
+    IDLE,
+    RUNNING,
+    PAUSED,
+    COMPLETED,
+    FAILED,
+    CANCELLED
+  }
+
+  private final BleDevice bleDevice;
+  private final String serviceUuid;
+  private final String characteristicUuid;
+  private final ByteBuffer data;
+  private final long length;
+  private final BleTransferCallback callback;
+
+  private int window = DEFAULT_WINDOW;
+  private int maxRetries = DEFAULT_MAX_RETRIES;
+  private boolean offsetHeader;
+  private int writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+  private BlePriority priority = BlePriority.BULK;
+
+  private State state = State.IDLE;
+  // Incremented on every start, pause and cancel, results of older chunks are ignored
+  private int generation;
+
+  // Chunk layout of the current run, chunk i starts at base + i * chunkSize
+  private long base;
+  private int chunkSize;
+  private int chunkCount;
+  private int nextChunk;
+  private int inFlight;
+  private long acknowledgedBytes;
+  private final BitSet acknowledged = new BitSet();
+  private final BitSet retransmit = new BitSet();
+  private final Map<Integer, Integer> retries = new HashMap<>();
+
+  public BleTransfer(BleDevice bleDevice, String uuidService, String uuidCharacteristic,
+      ByteBuffer data, BleTransferCallback callback) {
+    if (callback == null) {
+      throw new IllegalArgumentException("BleTransferCallback can not be Null!");
+    }
+    this.bleDevice = bleDevice;
+    this.serviceUuid = uuidService;
+    this.characteristicUuid = uuidCharacteristic;
+    this.data = data.slice();
+    this.length = this.data.remaining();
+    this.callback = callback;
+  }
+
+  /**
+   * Set the number of chunks queued at the same time
+   *
+   * @return BleTransfer
+   */
+  public synchronized BleTransfer setWindow(int window) {
+    this.window = Math.max(window, 1);
+    return this;
+  }
+
+  /**
+   * Set how often a single chunk is retransmitted before the transfer fails
+   *
+   * @return BleTransfer
+   */
+  public synchronized BleTransfer setMaxRetries(int maxRetries) {
+    this.maxRetries = Math.max(maxRetries, 0);
+    return this;
+  }
+
+  /**
+   * Prefix every chunk with its offset, see the class documentation
+   *
+   * @return BleTransfer
+   */
+  public synchronized BleTransfer setOffsetHeader(boolean offsetHeader) {
+    this.offsetHeader = offsetHeader;
+    return this;
+  }
+
+  /**
+   * Set the write type of the chunks, {@link BluetoothGattCharacteristic#WRITE_TYPE_DEFAULT} by
+   * default
+   *
+   * @return BleTransfer
+   */
+  public synchronized BleTransfer setWriteType(int writeType) {
+    this.writeType = writeType;
+    return this;
+  }
+
+  /**
+   * Set the queue priority of the chunks, {@link BlePriority#BULK} by default
+   *
+   * @return BleTransfer
+   */
+  public synchronized BleTransfer setPriority(BlePriority priority) {
+    if (priority != null) {
+      this.priority = priority;
+    }
+    return this;
+  }
+
+  /**
+   * Set the offset a transfer that is not running continues at, e.g. a checkpoint persisted in an
+   * earlier session
+   *
+   * @return BleTransfer
+   */
+  public synchronized BleTransfer setCheckpoint(long checkpoint) {
+    if (state != State.RUNNING) {
+      layout(Math.min(Math.max(checkpoint, 0), length), chunkSize);
+    }
+    return this;
+  }
+
+  /**
+   * Offset up to which every byte has been acknowledged
+   */
+  public synchronized long getCheckpoint() {
+    if (chunkCount == 0) {
+      return base;
+    }
+    return Math.min(base + (long) acknowledged.nextClearBit(0) * chunkSize, length);
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Starts the transfer, or resumes it at the checkpoint if it has been paused or has failed
+   *
+   * @return false if the transfer is already running, completed or cancelled
+   */
+  public synchronized boolean start() {
+    if (state == State.RUNNING || state == State.COMPLETED || state == State.CANCELLED) {
+      return false;
+    }
+    BleBluetooth bleBluetooth = getBleBluetooth();
+    if (bleBluetooth == null) {
+      fail(new OtherException("This device not connect!"));
+      return true;
+    }
+
+    int size = bleBluetooth.getMaxPayload() - (offsetHeader ? OFFSET_HEADER_SIZE : 0);
+    if (size <= 0) {
+      fail(new OtherException("MTU too small for the offset header"));
+      return true;
+    }
+    layout(getCheckpoint(), size);
+    generation++;
+    state = State.RUNNING;
+    if (chunkCount == 0) {
+      complete();
+    } else {
+      pump(bleBluetooth);
+    }
+    return true;
+  }
+
+  /**
+   * Stops queueing chunks, chunks already queued are still sent but no longer tracked
+   */
+  public synchronized void pause() {
+    if (state == State.RUNNING) {
+      pauseRun();
+    }
+  }
+
+  /**
+   * Stops the transfer for good
+   */
+  public synchronized void cancel() {
+    if (state != State.COMPLETED) {
+      generation++;
+      state = State.CANCELLED;
+    }
+  }
+
+  /**
+   * Recomputes the chunks from the given offset on, acknowledgements beyond the offset are lost
+   */
+  private void layout(long offset, int size) {
+    base = offset;
+    chunkSize = size;
+    chunkCount = size <= 0 ? 0 : (int) ((length - offset + size - 1) / size);
+    nextChunk = 0;
+    inFlight = 0;
+    acknowledgedBytes = 0;
+    acknowledged.clear();
+    retransmit.clear();
+    retries.clear();
+  }
+
+  private BleBluetooth getBleBluetooth() {
+    return BleManager.getInstance().getMultipleBluetoothController().getBleBluetooth(bleDevice);
+  }
+
+  /**
+   * Queues chunks until the window is full, retransmissions go first
+   */
+  private void pump(BleBluetooth bleBluetooth) {
+    while (state == State.RUNNING && inFlight < window) {
+      int chunk = retransmit.nextSetBit(0);
+      if (chunk >= 0) {
+        retransmit.clear(chunk);
+      } else if (nextChunk < chunkCount) {
+        chunk = nextChunk++;
+      } else {
+        return;
+      }
+      inFlight++;
+      bleBluetooth.enqueueCommand(createCommand(chunk));
+    }
+  }
+
+  private BleCommand createCommand(int chunk) {
+    long offset = base + (long) chunk * chunkSize;
+    int size = (int) Math.min(chunkSize, length - offset);
+    int header = offsetHeader ? OFFSET_HEADER_SIZE : 0;
+    byte[] value = new byte[header + size];
+    if (offsetHeader) {
+      value[0] = (byte) offset;
+      value[1] = (byte) (offset >> 8);
+      value[2] = (byte) (offset >> 16);
+      value[3] = (byte) (offset >> 24);
+    }
+    data.position((int) offset);
+    data.get(value, header, size);
+
+    BleCommandType type = writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+        ? BleCommandType.WRITE_NO_RESPONSE : BleCommandType.WRITE;
+    return new BleCommand(type, serviceUuid, characteristicUuid, null,
+        new ChunkCallback(chunk, size, generation), value).setWriteType(writeType)
+        .setPriority(priority);
+  }
+
+  private synchronized void onChunkWritten(int chunk, int size, int chunkGeneration) {
+    if (chunkGeneration != generation || state != State.RUNNING) {
+      return;
+    }
+    inFlight--;
+    if (acknowledged.get(chunk)) {
+      return;
+    }
+    acknowledged.set(chunk);
+    acknowledgedBytes += size;
+    long progress = base + acknowledgedBytes;
+    BleManager.getInstance().runBleCallbackMethodInContext(
+        () -> callback.onProgress(progress, length), callback.isRunOnUiThread());
+
+    if (acknowledged.cardinality() == chunkCount) {
+      complete();
+      return;
+    }
+    BleBluetooth bleBluetooth = getBleBluetooth();
+    if (bleBluetooth == null) {
+      pauseRun();
+    } else {
+      pump(bleBluetooth);
+    }
+  }
+
+  private synchronized void onChunkFailed(int chunk, int chunkGeneration, BleException exception) {
+    if (chunkGeneration != generation || state != State.RUNNING) {
+      return;
+    }
+    inFlight--;
+    BleBluetooth bleBluetooth = getBleBluetooth();
+    if (bleBluetooth == null || !BleManager.getInstance().isConnected(bleDevice)) {
+      pauseRun();
+      return;
+    }
+
+    Integer count = retries.get(chunk);
+    int attempts = count == null ? 1 : count + 1;
+    if (attempts > maxRetries) {
+      fail(exception);
+      return;
+    }
+    retries.put(chunk, attempts);
+    retransmit.set(chunk);
+    pump(bleBluetooth);
+  }
+
+  private void pauseRun() {
+    generation++;
+    state = State.PAUSED;
+    long checkpoint = getCheckpoint();
+    BleManager.getInstance().runBleCallbackMethodInContext(
+        () -> callback.onPaused(checkpoint), callback.isRunOnUiThread());
+  }
+
+  private void complete() {
+    generation++;
+    state = State.COMPLETED;
+    BleManager.getInstance().runBleCallbackMethodInContext(
+        () -> callback.onTransferComplete(length), callback.isRunOnUiThread());
+  }
+
+  private void fail(BleException exception) {
+    generation++;
+    state = State.FAILED;
+    BleManager.getInstance().runBleCallbackMethodInContext(
+        () -> callback.onFailure(exception), callback.isRunOnUiThread());
+  }
+
+  private class ChunkCallback extends BleWriteCallback {
+
+    private final int chunk;
+    private final int size;
+    private final int chunkGeneration;
+
+    ChunkCallback(int chunk, int size, int chunkGeneration) {
+      this.chunk = chunk;
+      this.size = size;
+      this.chunkGeneration = chunkGeneration;
+    }
+
+    /**
+     * Chunk results are handled where they arrive, the app only hears from the transfer callback
+     */
+    @Override
+    public boolean isRunOnUiThread() {
+      return false;
+    }
+
+    @Override
+    public void onWriteSuccess(int current, int total, byte[] justWrite) {
+      onChunkWritten(chunk, size, chunkGeneration);
+    }
+
+    @Override
+    public void onFailure(BleException exception) {
+      onChunkFailed(chunk, chunkGeneration, exception);
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.docoyo.reliable.bluetooth;
+
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.UUID;
+
+/**
+ * A characteristic resolved once after service discovery. Passing a handle to the read, write and
+ * notify methods of {@link com.docoyo.reliable.BleManager} skips parsing and looking up the UUIDs
+ * for every command. A handle stays valid for the connection it was obtained from, after a
+ * reconnect it is resolved again by its UUIDs.
+ */
+public final class CharacteristicHandle {
+
+  private final BleGattIndex gattIndex;
+  private final int index;
+  private final BluetoothGattCharacteristic characteristic;
+  private final BluetoothGattDescriptor clientConfig;
+  private final String serviceUuid;
+  private final String characteristicUuid;
+
+  CharacteristicHandle(BleGattIndex gattIndex, int index,
+      BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor clientConfig) {
+    this.gattIndex = gattIndex;
+    this.index = index;
+    this.characteristic = characteristic;
+    this.clientConfig = clientConfig;
+    this.serviceUuid = characteristic.getService().getUuid().toString();
+    this.characteristicUuid = characteristic.getUuid().toString();
+  }
+
+  BleGattIndex getGattIndex() {
+    return gattIndex;
+  }
+
+  /**
+   * Position of the characteristic in the attribute index of its connection
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  public BluetoothGattCharacteristic getCharacteristic() {
+    return characteristic;
+  }
+
+  /**
+   * The client characteristic configuration descriptor, null if notify is not supported
+   */
+  public BluetoothGattDescriptor getClientConfig() {
+    return clientConfig;
+  }
+
+  public int getProperties() {
+    return characteristic.getProperties();
+  }
+
+  public UUID getUuid() {
+    return characteristic.getUuid();
+  }
+
+  public String getServiceUuid() {
+    return serviceUuid;
+  }
+
+  public String getCharacteristicUuid() {
+    return characteristicUuid;
+  }
+
+  @Override
+  public String toString() {
+    return "CharacteristicHandle{" + serviceUuid + "/" + characteristicUuid + "#" + index + "}";
+  }
+}
@@ -0,0 +1,192 @@
+package com.docoyo.reliable.bluetooth;
+
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.docoyo.reliable.BleManager;
+import com.docoyo.reliable.callback.BleLongReadCallback;
+import com.docoyo.reliable.data.BleLongReadMode;
+import com.docoyo.reliable.exception.BleException;
+import com.docoyo.reliable.exception.GattException;
+import com.docoyo.reliable.exception.OtherException;
+import com.docoyo.reliable.utils.BleBufferPool;
+import com.docoyo.reliable.utils.BleTimingWheel;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a value that the device hands out in several chunks by reading the characteristic
+ * repeatedly. The read is queued as a single {@link BleCommand.BleCommandType#READ_LONG} command
+ * and runs on the looper of the device, the next read is issued as soon as the previous chunk has
+ * arrived. The chunks are appended to a buffer of the {@link BleBufferPool} which is handed to the
+ * callback once the {@link BleLongReadMode} of the callback detects the end of the value.
+ */
+class LongReader {
+
+    private static final int LENGTH_PREFIX_SIZE = 2;
+    // The stack continues a full response with Read Blob itself, so one read returns up to the
+    // whole attribute
+    private static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    private final BleBluetooth mBleBluetooth;
+    private final BleCommand mCommand;
+    private final BluetoothGatt mBluetoothGatt;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final BleGattIndex mGattIndex;
+    private final int mSlot;
+    private final BleLongReadCallback mCallback;
+    private final BleLongReadMode mMode;
+
+    private ByteBuffer mBuffer;
+    private int mExpected = -1;
+    private boolean mFinished;
+
+    LongReader(BleBluetooth bleBluetooth, BleCommand command, BluetoothGatt bluetoothGatt,
+        CharacteristicHandle handle) {
+        mBleBluetooth = bleBluetooth;
+        mCommand = command;
+        mBluetoothGatt = bluetoothGatt;
+        mCharacteristic = handle.getCharacteristic();
+        mGattIndex = handle.getGattIndex();
+        mSlot = handle.getIndex();
+        mCallback = (BleLongReadCallback) command.getCallback();
+        mMode = mCallback.getMode();
+    }
+
+    BleCommand getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * Issues the first read.
+     *
+     * @return false if the read failed right away, the callback has been notified
+     */
+    boolean start() {
+        mBuffer = BleBufferPool.acquire(MAX_ATTRIBUTE_LENGTH);
+        mGattIndex.registerResponse(mSlot, mCommand);
+        if (!mBluetoothGatt.readCharacteristic(mCharacteristic)) {
+            mFinished = true;
+            mGattIndex.clearResponse(mSlot, mCommand);
+            BleBufferPool.release(mBuffer);
+            mBuffer = null;
+            notifyFailure(new OtherException("gatt readCharacteristic fail"));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The stack delivered the chunk read last
+     */
+    void onChunkRead(int status, byte[] value) {
+        if (mFinished) {
+            return;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            finish(new GattException(status));
+            return;
+        }
+
+        int length = value == null ? 0 : value.length;
+        int offset = 0;
+        if (mMode == BleLongReadMode.LENGTH_PREFIXED && mExpected < 0) {
+            if (length < LENGTH_PREFIX_SIZE) {
+                finish(new OtherException("long read without length prefix"));
+                return;
+            }
+            mExpected = (value[0] & 0xFF) | (value[1] & 0xFF) << 8;
+            offset = LENGTH_PREFIX_SIZE;
+            if (mExpected > mCallback.getMaxLength()) {
+                finish(new OtherException("long read exceeds the maximum length"));
+                return;
+            }
+        }
+
+        int count = length - offset;
+        if (mBuffer.position() + count > mCallback.getMaxLength()) {
+            finish(new OtherException("long read exceeds the maximum length"));
+            return;
+        }
+        if (count > 0) {
+            mBuffer = BleBufferPool.ensureRemaining(mBuffer, count);
+            mBuffer.put(value, offset, count);
+        }
+
+        boolean complete;
+        switch (mMode) {
+            case UNTIL_EMPTY:
+                complete = length == 0;
+                break;
+            case UNTIL_SHORT:
+                complete = length < MAX_ATTRIBUTE_LENGTH;
+                break;
+            default:
+                complete = mBuffer.position() >= mExpected;
+                if (!complete && length == 0) {
+                    finish(new OtherException("long read ended before the announced length"));
+                    return;
+                }
+                break;
+        }
+        if (complete) {
+            finish(null);
+            return;
+        }
+
+        rearmTimeout();
+        if (!mBluetoothGatt.readCharacteristic(mCharacteristic)) {
+            finish(new OtherException("gatt readCharacteristic fail"));
+        }
+    }
+
+    /**
+     * Stops the read without notifying the callback, e.g. after a timeout or reconnect
+     */
+    void abort() {
+        if (!mFinished) {
+            mFinished = true;
+            mGattIndex.clearResponse(mSlot, mCommand);
+            BleBufferPool.release(mBuffer);
+            mBuffer = null;
+        }
+    }
+
+    private void rearmTimeout() {
+        BleTimingWheel.Timeout timeout = mCommand.getTimeout();
+        if (timeout != null && timeout.isPending()) {
+            mBleBluetooth.getEventLoop().getTimingWheel()
+                .schedule(timeout, BleManager.getInstance().getOperateTimeout());
+        }
+    }
+
+    private void finish(BleException exception) {
+        mFinished = true;
+        mGattIndex.clearResponse(mSlot, mCommand);
+        ByteBuffer buffer = mBuffer;
+        mBuffer = null;
+        if (exception != null) {
+            BleBufferPool.release(buffer);
+            notifyFailure(exception);
+        } else {
+            buffer.flip();
+            if (mExpected >= 0 && buffer.limit() > mExpected) {
+                buffer.limit(mExpected);
+            }
+            ByteBuffer data = buffer.asReadOnlyBuffer();
+            BleManager.getInstance().runBleCallbackMethodInContext(() -> {
+                try {
+                    mCallback.onReadSuccess(data);
+                } finally {
+                    BleBufferPool.release(buffer);
+                }
+            }, mCallback.isRunOnUiThread());
+        }
+        mBleBluetooth.completeCommand(mCommand);
+    }
+
+    private void notifyFailure(BleException exception) {
+        BleManager.getInstance().runBleCallbackMethodInContext(
+            () -> mCallback.onFailure(exception), mCallback.isRunOnUiThread());
+    }
+}
@@ -1,106 +1,259 @@
 package com.docoyo.reliable.bluetooth;
 
 
-import android.bluetooth.BluetoothDevice;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import com.docoyo.reliable.BleManager;
 import com.docoyo.reliable.data.BleDevice;
-import com.docoyo.reliable.utils.BleLruHashMap;
+import com.docoyo.reliable.utils.BleLog;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Registry of the connecting and connected devices. Lookups are lock-free reads of a {@link
+ * ConcurrentHashMap}, recency is tracked by a timestamp on each {@link BleBluetooth} instead of an
+ * access ordered list, so readers never serialize. Only adding and removing devices take the
+ * writer lock, which also guards evicting a device once more than {@link
+ * BleManager#getMaxConnectCount()} devices are connected. The device to evict is chosen by the
+ * configured {@link BleEvictionPolicy}, pinned devices are never evicted.
+ * <p>
+ * With an idle timeout configured, a sweep posted to the background looper disconnects every
+ * unpinned device without GATT traffic for longer than that timeout. The sweep only runs while
+ * devices are connected. Evicted and idle devices are reported through {@code onDisconnected}
+ * with {@code isActiveDisConnected} false, so the app can tell them from its own disconnects.
+ */
 public class MultipleBluetoothController {
 
-    private final BleLruHashMap<String, BleBluetooth> bleLruHashMap;
-    private final HashMap<String, BleBluetooth> bleTempHashMap;
+    private static final long MIN_IDLE_SWEEP_INTERVAL = 1000;
+
+    private final ConcurrentHashMap<String, BleBluetooth> bleConnectedMap;
+    private final ConcurrentHashMap<String, BleBluetooth> bleTempHashMap;
+    private final Set<String> pinnedKeys = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Object writeLock = new Object();
+    private final Runnable idleSweep = this::reapIdleDevices;
+    private Handler idleSweepHandler;
+    private boolean idleSweepPending;
+    private final BleConnectScheduler connectScheduler;
 
     public MultipleBluetoothController() {
-        bleLruHashMap = new BleLruHashMap<>(BleManager.getInstance().getMaxConnectCount());
-        bleTempHashMap = new HashMap<>();
+        bleConnectedMap = new ConcurrentHashMap<>();
+        bleTempHashMap = new ConcurrentHashMap<>();
+        connectScheduler = new BleConnectScheduler(this);
+    }
+
+    public BleConnectScheduler getConnectScheduler() {
+        return connectScheduler;
     }
 
-    public synchronized BleBluetooth buildConnectingBle(BleDevice bleDevice) {
+    public int getConnectedCount() {
+        return bleConnectedMap.size();
+    }
+
+    public BleBluetooth buildConnectingBle(BleDevice bleDevice) {
         BleBluetooth bleBluetooth = new BleBluetooth(bleDevice);
-        if (!bleTempHashMap.containsKey(bleBluetooth.getDeviceKey())) {
-            bleTempHashMap.put(bleBluetooth.getDeviceKey(), bleBluetooth);
-        }
+        bleTempHashMap.putIfAbsent(bleBluetooth.getDeviceKey(), bleBluetooth);
         return bleBluetooth;
     }
 
-    public synchronized void removeConnectingBle(BleBluetooth bleBluetooth) {
+    public void removeConnectingBle(BleBluetooth bleBluetooth) {
         if (bleBluetooth == null) {
             return;
         }
-      bleTempHashMap.remove(bleBluetooth.getDeviceKey());
+        bleTempHashMap.remove(bleBluetooth.getDeviceKey());
+        connectScheduler.onConnectFinished(bleBluetooth);
     }
 
-    public synchronized void addBleBluetooth(BleBluetooth bleBluetooth) {
+    public void addBleBluetooth(BleBluetooth bleBluetooth) {
         if (bleBluetooth == null) {
             return;
         }
-        if (!bleLruHashMap.containsKey(bleBluetooth.getDeviceKey())) {
-            bleLruHashMap.put(bleBluetooth.getDeviceKey(), bleBluetooth);
+        BleBluetooth evicted = null;
+        synchronized (writeLock) {
+            bleBluetooth.resetUsage();
+            if (bleConnectedMap.putIfAbsent(bleBluetooth.getDeviceKey(), bleBluetooth) == null
+                && bleConnectedMap.size() > BleManager.getInstance().getMaxConnectCount()) {
+                evicted = selectEvictionVictim(bleBluetooth);
+                if (evicted != null) {
+                    bleConnectedMap.remove(evicted.getDeviceKey(), evicted);
+                }
+            }
+        }
+        if (evicted != null) {
+            BleLog.i("evict " + evicted.getDeviceKey());
+            evicted.reclaim();
         }
+        scheduleIdleSweep();
     }
 
-    public synchronized void removeBleBluetooth(BleBluetooth bleBluetooth) {
+    public void removeBleBluetooth(BleBluetooth bleBluetooth) {
         if (bleBluetooth == null) {
             return;
         }
-      bleLruHashMap.remove(bleBluetooth.getDeviceKey());
+        bleConnectedMap.remove(bleBluetooth.getDeviceKey());
+        // Eviction, idle reaping and disconnectAllDevice take the device out of the map before
+        // the link is down, so the freed slot is handed on here in any case
+        connectScheduler.pump();
     }
 
-    private synchronized boolean isContainDevice(BleDevice bleDevice) {
-        return bleDevice != null && bleLruHashMap.containsKey(bleDevice.getKey());
+    private boolean isContainDevice(BleDevice bleDevice) {
+        return bleDevice != null && bleConnectedMap.containsKey(bleDevice.getKey());
     }
 
-    public synchronized BleBluetooth getBleBluetooth(BleDevice bleDevice) {
+    public BleBluetooth getBleBluetooth(BleDevice bleDevice) {
         if (bleDevice != null) {
-            if (bleLruHashMap.containsKey(bleDevice.getKey())) {
-                return bleLruHashMap.get(bleDevice.getKey());
+            BleBluetooth bleBluetooth = bleConnectedMap.get(bleDevice.getKey());
+            if (bleBluetooth != null) {
+                bleBluetooth.touch();
             }
+            return bleBluetooth;
         }
         return null;
     }
 
-    public synchronized void disconnect(BleDevice bleDevice) {
-        if (isContainDevice(bleDevice)) {
-            getBleBluetooth(bleDevice).disconnect();
+    public void disconnect(BleDevice bleDevice) {
+        // A device still waiting for admission is only known to the scheduler
+        connectScheduler.cancel(bleDevice);
+        BleBluetooth bleBluetooth = getBleBluetooth(bleDevice);
+        if (bleBluetooth != null) {
+            bleBluetooth.disconnect();
+        }
+    }
+
+    public void disconnectAllDevice() {
+        connectScheduler.cancelAll();
+        List<BleBluetooth> bleBluetoothList;
+        synchronized (writeLock) {
+            bleBluetoothList = new ArrayList<>(bleConnectedMap.values());
+            bleConnectedMap.clear();
+        }
+        for (BleBluetooth bleBluetooth : bleBluetoothList) {
+            bleBluetooth.disconnect();
         }
     }
 
-    public synchronized void disconnectAllDevice() {
-        for (Map.Entry<String, BleBluetooth> stringBleBluetoothEntry : bleLruHashMap.entrySet()) {
-            stringBleBluetoothEntry.getValue().disconnect();
+    public void destroy() {
+        List<BleBluetooth> bleBluetoothList;
+        synchronized (writeLock) {
+            bleBluetoothList = new ArrayList<>(bleConnectedMap.values());
+            bleBluetoothList.addAll(bleTempHashMap.values());
+            bleConnectedMap.clear();
+            bleTempHashMap.clear();
+            pinnedKeys.clear();
+        }
+        cancelIdleSweep();
+        connectScheduler.clear();
+        for (BleBluetooth bleBluetooth : bleBluetoothList) {
+            bleBluetooth.destroy();
         }
-        bleLruHashMap.clear();
     }
 
-    public synchronized void destroy() {
-        for (Map.Entry<String, BleBluetooth> stringBleBluetoothEntry : bleLruHashMap.entrySet()) {
-            stringBleBluetoothEntry.getValue().destroy();
+    /**
+     * @param exclude device that must not be chosen, usually the one just added
+     */
+    private BleBluetooth selectEvictionVictim(BleBluetooth exclude) {
+        List<BleBluetooth> candidates = new ArrayList<>(bleConnectedMap.size());
+        for (BleBluetooth bleBluetooth : bleConnectedMap.values()) {
+            if (bleBluetooth != exclude && !isPinned(bleBluetooth.getDeviceKey())) {
+                candidates.add(bleBluetooth);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        return BleManager.getInstance().getEvictionPolicy().selectVictim(candidates);
+    }
+
+    public void setPinned(BleDevice bleDevice, boolean pinned) {
+        if (bleDevice == null) {
+            return;
+        }
+        if (pinned) {
+            pinnedKeys.add(bleDevice.getKey());
+        } else {
+            pinnedKeys.remove(bleDevice.getKey());
+        }
+    }
+
+    public boolean isPinned(BleDevice bleDevice) {
+        return bleDevice != null && isPinned(bleDevice.getKey());
+    }
+
+    private boolean isPinned(String key) {
+        return pinnedKeys.contains(key);
+    }
+
+    /**
+     * Starts the idle sweep if an idle timeout is configured and devices are connected.
+     */
+    public void scheduleIdleSweep() {
+        long idleTimeout = BleManager.getInstance().getIdleTimeout();
+        Looper looper = BleManager.getInstance().getBgLooper();
+        synchronized (idleSweep) {
+            if (idleTimeout <= 0 || looper == null || bleConnectedMap.isEmpty()) {
+                cancelIdleSweep();
+                return;
+            }
+            if (idleSweepPending) {
+                return;
+            }
+            if (idleSweepHandler == null || idleSweepHandler.getLooper() != looper) {
+                idleSweepHandler = new Handler(looper);
+            }
+            idleSweepPending = idleSweepHandler.postDelayed(idleSweep,
+                Math.max(MIN_IDLE_SWEEP_INTERVAL, idleTimeout / 4));
+        }
+    }
+
+    private void cancelIdleSweep() {
+        synchronized (idleSweep) {
+            if (idleSweepHandler != null) {
+                idleSweepHandler.removeCallbacks(idleSweep);
+            }
+            idleSweepPending = false;
+        }
+    }
+
+    private void reapIdleDevices() {
+        synchronized (idleSweep) {
+            idleSweepPending = false;
+        }
+        long idleTimeout = BleManager.getInstance().getIdleTimeout();
+        if (idleTimeout <= 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        List<BleBluetooth> idleList = new ArrayList<>();
+        synchronized (writeLock) {
+            for (BleBluetooth bleBluetooth : bleConnectedMap.values()) {
+                if (!isPinned(bleBluetooth.getDeviceKey())
+                    && now - bleBluetooth.getLastTrafficTime() >= idleTimeout
+                    && bleConnectedMap.remove(bleBluetooth.getDeviceKey(), bleBluetooth)) {
+                    idleList.add(bleBluetooth);
+                }
+            }
         }
-        bleLruHashMap.clear();
-        for (Map.Entry<String, BleBluetooth> stringBleBluetoothEntry : bleTempHashMap.entrySet()) {
-            stringBleBluetoothEntry.getValue().destroy();
+        for (BleBluetooth bleBluetooth : idleList) {
+            BleLog.i("disconnect idle " + bleBluetooth.getDeviceKey());
+            bleBluetooth.reclaim();
         }
-        bleTempHashMap.clear();
+        scheduleIdleSweep();
     }
 
-    private synchronized List<BleBluetooth> getBleBluetoothList() {
-        List<BleBluetooth> bleBluetoothList = new ArrayList<>(bleLruHashMap.values());
+    private List<BleBluetooth> getBleBluetoothList() {
+        List<BleBluetooth> bleBluetoothList = new ArrayList<>(bleConnectedMap.values());
         Collections.sort(bleBluetoothList,
             (lhs, rhs) -> lhs.getDeviceKey().compareToIgnoreCase(rhs.getDeviceKey()));
         return bleBluetoothList;
     }
 
-    public synchronized List<BleDevice> getDeviceList() {
+    public List<BleDevice> getDeviceList() {
         refreshConnectedDevice();
         List<BleDevice> deviceList = new ArrayList<>();
         for (BleBluetooth BleBluetooth : getBleBluetoothList()) {
@@ -1,169 +1,249 @@
 package com.docoyo.reliable.bluetooth;
 
-//class SplitWriter {
-//
-//    private final HandlerThread mHandlerThread;
-//    private final Handler mHandler;
-//
-//    private BleBluetooth mBleBluetooth;
-//    private String mUuid_service;
-//    private String mUuid_write;
-//    private byte[] mData;
-//    private int mCount;
-//    private boolean mSendNextWhenLastSuccess;
-//    private long mIntervalBetweenTwoPackage;
-//    private BleWriteCallback mCallback;
-//    private Queue<byte[]> mDataQueue;
-//    private int mTotalNum;
-//
-//    public SplitWriter() {
-//        mHandlerThread = new HandlerThread("splitWriter");
-//        mHandlerThread.start();
-//
-//        mHandler = new Handler(mHandlerThread.getLooper()) {
-//            @Override
-//            public void handleMessage(Message msg) {
-//                super.handleMessage(msg);
-//                if (msg.what == BleMsg.MSG_SPLIT_WRITE_NEXT) {
-//                    write();
-//                }
-//            }
-//        };
-//    }
-//
-//    public void splitWrite(BleBluetooth bleBluetooth,
-//                           String uuid_service,
-//                           String uuid_write,
-//                           byte[] data,
-//                           boolean sendNextWhenLastSuccess,
-//                           long intervalBetweenTwoPackage,
-//                           BleWriteCallback callback) {
-//        mBleBluetooth = bleBluetooth;
-//        mUuid_service = uuid_service;
-//        mUuid_write = uuid_write;
-//        mData = data;
-//        mSendNextWhenLastSuccess = sendNextWhenLastSuccess;
-//        mIntervalBetweenTwoPackage = intervalBetweenTwoPackage;
-//        mCount = BleManager.getInstance().getSplitWriteNum();
-//        mCallback = callback;
-//
-//        splitWrite();
-//    }
-//
-//    private void splitWrite() {
-//        if (mData == null) {
-//            throw new IllegalArgumentException("data is Null!");
-//        }
-//        if (mCount < 1) {
-//            throw new IllegalArgumentException("split count should higher than 0!");
-//        }
-//        mDataQueue = splitByte(mData, mCount);
-//        mTotalNum = mDataQueue.size();
-//        write();
-//    }
-//
-//    private void write() {
-////        if (mDataQueue.peek() == null) {
-////            release();
-////            return;
-////        }
-////
-////        byte[] data = mDataQueue.poll();
-////        mBleBluetooth.newBleConnector()
-////                .withUUIDString(mUuid_service, mUuid_write)
-////                .writeCharacteristic(
-////                    mUuid_write, data,
-////                        new BleWriteCallback() {
-////                            @Override
-////                            public void onWriteSuccess(int current, int total, byte[] justWrite) {
-////                                int position = mTotalNum - mDataQueue.size();
-////                                if (mCallback != null) {
-////                                    mCallback.onWriteSuccess(position, mTotalNum, justWrite);
-////                                }
-////                                if (mSendNextWhenLastSuccess) {
-////                                    Message message = mHandler.obtainMessage(BleMsg.MSG_SPLIT_WRITE_NEXT);
-////                                    mHandler.sendMessageDelayed(message, mIntervalBetweenTwoPackage);
-////                                }
-////                            }
-////
-////                            @Override
-////                            public void onFailure(BleException exception) {
-////                                if (mCallback != null) {
-////                                    mCallback.onFailure(new OtherException("exception occur while writing: " + exception.getDescription()));
-////                                }
-////                                if (mSendNextWhenLastSuccess) {
-////                                    Message message = mHandler.obtainMessage(BleMsg.MSG_SPLIT_WRITE_NEXT);
-////                                    mHandler.sendMessageDelayed(message, mIntervalBetweenTwoPackage);
-////                                }
-////                            }
-////                        }
-////                );
-////
-////        if (!mSendNextWhenLastSuccess) {
-////            Message message = mHandler.obtainMessage(BleMsg.MSG_SPLIT_WRITE_NEXT);
-////            mHandler.sendMessageDelayed(message, mIntervalBetweenTwoPackage);
-////        }
-//    }
-//
-//    private void release() {
-//        mHandlerThread.quit();
-//        mHandler.removeCallbacksAndMessages(null);
-//    }
-//
-////    private static Queue<byte[]> splitByte(byte[] data, int count) {
-////        if (count > 20) {
-////            BleLog.w("Be careful: split count beyond 20! Ensure MTU higher than 23!");
-////        }
-////        Queue<byte[]> byteQueue = new LinkedList<>();
-////        if (data != null) {
-////            int index = 0;
-////            do {
-////                byte[] rawData = new byte[data.length - index];
-////                byte[] newData;
-////                System.arraycopy(data, index, rawData, 0, data.length - index);
-////                if (rawData.length <= count) {
-////                    newData = new byte[rawData.length];
-////                    System.arraycopy(rawData, 0, newData, 0, rawData.length);
-////                    index += rawData.length;
-////                } else {
-////                    newData = new byte[count];
-////                    System.arraycopy(data, index, newData, 0, count);
-////                    index += count;
-////                }
-////                byteQueue.offer(newData);
-////            } while (index < data.length);
-////        }
-////        return byteQueue;
-////    }
-//
-//    private static Queue<byte[]> splitByte(byte[] data, int count) {
-//        if (count > 20) {
-//            BleLog.w("Be careful: split count beyond 20! Ensure MTU higher than 23!");
-//        }
-//        Queue<byte[]> byteQueue = new LinkedList<>();
-//        int pkgCount;
-//        if (data.length % count == 0) {
-//            pkgCount = data.length / count;
-//        } else {
-//            pkgCount = Math.round(data.length / count + 1);
-//        }
-//
-//        if (pkgCount > 0) {
-//            for (int i = 0; i < pkgCount; i++) {
-//                byte[] dataPkg;
-//                int j;
-//                if (pkgCount == 1 || i == pkgCount - 1) {
-//                    j = data.length % count == 0 ? count : data.length % count;
-//                    System.arraycopy(data, i * count, dataPkg = new byte[j], 0, j);
-//                } else {
-//                    System.arraycopy(data, i * count, dataPkg = new byte[count], 0, count);
-//                }
-//                byteQueue.offer(dataPkg);
-//            }
-//        }
-//
-//        return byteQueue;
-//    }
-//
-//
-//}
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.docoyo.reliable.BleManager;
+import com.docoyo.reliable.callback.BleBaseCallback;
+import com.docoyo.reliable.callback.BleStreamWriteCallback;
+import com.docoyo.reliable.callback.BleWriteCallback;
+import com.docoyo.reliable.data.BleWriteSource;
+import com.docoyo.reliable.exception.BleException;
+import com.docoyo.reliable.exception.GattException;
+import com.docoyo.reliable.exception.OtherException;
+import com.docoyo.reliable.utils.BleTimingWheel;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes a payload larger than the ATT MTU as a sequence of chunks of {@link
+ * BleBluetooth#getMaxPayload()} bytes. The transfer is queued as a single {@link
+ * BleCommand.BleCommandType#WRITE_SPLIT} command and runs on the looper of the device: the next
+ * chunk is handed to the stack as soon as the previous one has been confirmed. A {@link
+ * BleWriteCallback} gets every confirmed chunk reported through {@code onWriteSuccess(current,
+ * total, data)} with the complete payload, a {@link BleStreamWriteCallback} gets the number of
+ * confirmed bytes.
+ * <p>
+ * The chunks are pulled from a {@link BleWriteSource}, payloads given as array are wrapped into
+ * one. {@code setValue} needs an array of the exact chunk length, so chunks are read into one
+ * scratch array that is reused for the whole transfer. The stack copies the value when the write
+ * is submitted.
+ * <p>
+ * A source that may block is read ahead by a {@link BleSourcePrefetcher} off the looper. When the
+ * next chunk has not been read yet the writer waits for it without holding up the looper.
+ */
+class SplitWriter {
+
+    private static final int WAITING = -2;
+
+    private final BleBluetooth mBleBluetooth;
+    private final BleCommand mCommand;
+    private final BluetoothGatt mBluetoothGatt;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final BleGattIndex mGattIndex;
+    private final int mSlot;
+    private final BleBaseCallback mCallback;
+    private final byte[] mData;
+    private final BleWriteSource mSource;
+    private final BleSourcePrefetcher mPrefetcher;
+    private final int mChunkSize;
+    private final long mLength;
+    private final int mTotal;
+
+    private byte[] mScratch;
+    private int mPending;
+    private int mCurrent;
+    private long mWritten;
+    private boolean mFinished;
+    private boolean mWaiting;
+
+    SplitWriter(BleBluetooth bleBluetooth, BleCommand command, BluetoothGatt bluetoothGatt,
+        CharacteristicHandle handle) {
+        mBleBluetooth = bleBluetooth;
+        mCommand = command;
+        mBluetoothGatt = bluetoothGatt;
+        mCharacteristic = handle.getCharacteristic();
+        mGattIndex = handle.getGattIndex();
+        mSlot = handle.getIndex();
+        mCallback = command.getCallback();
+        mData = command.getValue();
+        mSource = command.getSource() != null ? command.getSource() : BleWriteSource.of(mData);
+        mPrefetcher = mSource.isBlocking()
+            ? new BleSourcePrefetcher(mSource, bleBluetooth.getLooper(), this::onReadAhead) : null;
+        mChunkSize = bleBluetooth.getMaxPayload();
+        mLength = mSource.length();
+        mTotal = mLength == BleWriteSource.UNKNOWN_LENGTH ? -1
+            : (int) ((mLength + mChunkSize - 1) / mChunkSize);
+    }
+
+    BleCommand getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * Submits the first chunk.
+     *
+     * @return false if the transfer failed right away, the callback has been notified
+     */
+    boolean start() {
+        mGattIndex.registerResponse(mSlot, mCommand);
+        if (mPrefetcher != null) {
+            mPrefetcher.start();
+        }
+        BleException exception;
+        try {
+            mPending = writeNext();
+            if (mPending > 0 || mPending == WAITING) {
+                return true;
+            }
+            exception = mPending == 0 ? new OtherException("the data to be written is empty")
+                : new OtherException("gatt writeCharacteristic fail");
+        } catch (IOException e) {
+            exception = new OtherException("read of the write source fail: " + e.getMessage());
+        }
+        mFinished = true;
+        mGattIndex.clearResponse(mSlot, mCommand);
+        closeSource();
+        notifyFailure(exception);
+        return false;
+    }
+
+    /**
+     * The stack confirmed the chunk written last
+     */
+    void onChunkWritten(int status) {
+        if (mFinished) {
+            return;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            finish(new GattException(status));
+            return;
+        }
+
+        mCurrent++;
+        mWritten += mPending;
+        reportProgress();
+
+        rearmTimeout();
+        continueWrite();
+    }
+
+    /**
+     * More of a blocking source has been read ahead
+     */
+    private void onReadAhead() {
+        if (!mFinished && mWaiting) {
+            mWaiting = false;
+            continueWrite();
+        }
+    }
+
+    private void continueWrite() {
+        try {
+            mPending = writeNext();
+        } catch (IOException e) {
+            finish(new OtherException("read of the write source fail: " + e.getMessage()));
+            return;
+        }
+        if (mPending == 0) {
+            finish(null);
+        } else if (mPending == -1) {
+            finish(new OtherException("gatt writeCharacteristic fail"));
+        }
+    }
+
+    /**
+     * Stops the transfer without notifying the callback, e.g. after a timeout or reconnect
+     */
+    void abort() {
+        if (!mFinished) {
+            mFinished = true;
+            mGattIndex.clearResponse(mSlot, mCommand);
+            closeSource();
+        }
+    }
+
+    /**
+     * Reads the next chunk from the source and hands it to the stack
+     *
+     * @return the length of the chunk, 0 at the end of the source, -1 if the stack refused it or
+     * {@link #WAITING} until the prefetcher has read the chunk
+     */
+    private int writeNext() throws IOException {
+        if (mScratch == null) {
+            mScratch = new byte[mChunkSize];
+        }
+        if (mPrefetcher != null && !mPrefetcher.isReady(mScratch.length)) {
+            mWaiting = true;
+            return WAITING;
+        }
+        int length = mPrefetcher != null ? mPrefetcher.read(mScratch, 0, mScratch.length)
+            : mSource.read(mScratch, 0, mScratch.length);
+        if (length <= 0) {
+            return 0;
+        }
+        if (length < mScratch.length) {
+            // Only the last chunk is shorter
+            mScratch = Arrays.copyOf(mScratch, length);
+        }
+        if (!mCharacteristic.setValue(mScratch)) {
+            return -1;
+        }
+
+        int writeType = mCharacteristic.getWriteType();
+        mCharacteristic.setWriteType(mCommand.getWriteType());
+        boolean submitted = mBluetoothGatt.writeCharacteristic(mCharacteristic);
+        mCharacteristic.setWriteType(writeType);
+        return submitted ? length : -1;
+    }
+
+    private void reportProgress() {
+        if (mCallback instanceof BleWriteCallback) {
+            BleWriteCallback callback = (BleWriteCallback) mCallback;
+            int current = mCurrent;
+            BleManager.getInstance().runBleCallbackMethodInContext(
+                () -> callback.onWriteSuccess(current, mTotal, mData), callback.isRunOnUiThread());
+        } else if (mCallback instanceof BleStreamWriteCallback) {
+            BleStreamWriteCallback callback = (BleStreamWriteCallback) mCallback;
+            long written = mWritten;
+            BleManager.getInstance().runBleCallbackMethodInContext(
+                () -> callback.onProgress(written, mLength), callback.isRunOnUiThread());
+        }
+    }
+
+    private void rearmTimeout() {
+        BleTimingWheel.Timeout timeout = mCommand.getTimeout();
+        if (timeout != null && timeout.isPending()) {
+            mBleBluetooth.getEventLoop().getTimingWheel()
+                .schedule(timeout, BleManager.getInstance().getOperateTimeout());
+        }
+    }
+
+    private void closeSource() {
+        if (mPrefetcher != null) {
+            mPrefetcher.close();
+        }
+        mCommand.closeSource();
+    }
+
+    private void finish(BleException exception) {
+        mFinished = true;
+        mGattIndex.clearResponse(mSlot, mCommand);
+        closeSource();
+        if (exception != null) {
+            notifyFailure(exception);
+        } else if (mCallback instanceof BleStreamWriteCallback) {
+            BleStreamWriteCallback callback = (BleStreamWriteCallback) mCallback;
+            long written = mWritten;
+            BleManager.getInstance().runBleCallbackMethodInContext(
+                () -> callback.onWriteSuccess(written), callback.isRunOnUiThread());
+        }
+        mBleBluetooth.completeCommand(mCommand);
+    }
+
+    private void notifyFailure(BleException exception) {
+        BleManager.getInstance().runBleCallbackMethodInContext(
+            () -> mCallback.onFailure(exception), mCallback.isRunOnUiThread());
+    }
+}
@@ -0,0 +1,44 @@
+package com.docoyo.reliable.callback;
+
+
+import com.docoyo.reliable.data.BleLongReadMode;
+import java.nio.ByteBuffer;
+
+/**
+ * Callback of a long read. The chunks are assembled into a pooled buffer and delivered once
+ * through {@link #onReadSuccess(ByteBuffer)}. The buffer is read-only and only valid during the
+ * call, it is reused once the method returns.
+ */
+public abstract class BleLongReadCallback extends BleBaseCallback {
+
+  public static final int DEFAULT_MAX_LENGTH = 64 * 1024;
+
+  private final BleLongReadMode mode;
+  private final int maxLength;
+
+  public BleLongReadCallback(BleLongReadMode mode) {
+    this(mode, DEFAULT_MAX_LENGTH);
+  }
+
+  /**
+   * @param maxLength the read fails once the value grows beyond this length
+   */
+  public BleLongReadCallback(BleLongReadMode mode, int maxLength) {
+    if (mode == null) {
+      throw new IllegalArgumentException("BleLongReadMode can not be Null!");
+    }
+    this.mode = mode;
+    this.maxLength = maxLength;
+  }
+
+  public BleLongReadMode getMode() {
+    return mode;
+  }
+
+  public int getMaxLength() {
+    return maxLength;
+  }
+
+  public abstract void onReadSuccess(ByteBuffer data);
+
+}
@@ -0,0 +1,34 @@
+package com.docoyo.reliable.callback;
+
+
+import com.docoyo.reliable.data.BleNotifyRingBuffer;
+
+/**
+ * Notify callback that collects the payloads in a {@link BleNotifyRingBuffer} instead of handing
+ * over one array per notification. {@link #onDataAvailable(BleNotifyRingBuffer)} is called once
+ * the buffer received data after the last call, the consumer drains the buffer at its own pace.
+ */
+public abstract class BleNotifyBufferCallback extends BleNotifyOrIndicateCallback {
+
+  private final BleNotifyRingBuffer buffer;
+
+  public BleNotifyBufferCallback(BleNotifyRingBuffer buffer) {
+    if (buffer == null) {
+      throw new IllegalArgumentException("BleNotifyRingBuffer can not be Null!");
+    }
+    this.buffer = buffer;
+  }
+
+  public BleNotifyRingBuffer getBuffer() {
+    return buffer;
+  }
+
+  public abstract void onDataAvailable(BleNotifyRingBuffer buffer);
+
+  /**
+   * Not used, the payloads are delivered through the buffer
+   */
+  @Override
+  public final void onCharacteristicChanged(byte[] data) {
+  }
+}
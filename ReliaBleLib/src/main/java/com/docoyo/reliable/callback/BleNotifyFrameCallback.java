@@ -0,0 +1,36 @@
+package com.docoyo.reliable.callback;
+
+
+import com.docoyo.reliable.data.BleFrameDecoder;
+import java.nio.ByteBuffer;
+
+/**
+ * Notify callback that receives logical frames instead of single notifications. The notifications
+ * are reassembled by the {@link BleFrameDecoder} on the looper of the device, only complete frames
+ * reach {@link #onFrame(ByteBuffer)}. The frame is only valid during the call, its buffer is
+ * reused once the method returns.
+ */
+public abstract class BleNotifyFrameCallback extends BleNotifyOrIndicateCallback {
+
+  private final BleFrameDecoder decoder;
+
+  public BleNotifyFrameCallback(BleFrameDecoder decoder) {
+    if (decoder == null) {
+      throw new IllegalArgumentException("BleFrameDecoder can not be Null!");
+    }
+    this.decoder = decoder;
+  }
+
+  public BleFrameDecoder getDecoder() {
+    return decoder;
+  }
+
+  public abstract void onFrame(ByteBuffer frame);
+
+  /**
+   * Not used, the payloads are delivered as frames
+   */
+  @Override
+  public final void onCharacteristicChanged(byte[] data) {
+  }
+}
@@ -1,11 +1,40 @@
 package com.docoyo.reliable.callback;
 
 
+import java.util.List;
+
 public abstract class BleNotifyOrIndicateCallback extends BleBaseCallback{
 
+    private boolean frameBatching;
+
     public abstract void onStart();
 
     public abstract void onCharacteristicChanged(byte[] data);
 
+    /**
+     * Receives the notifications collected since the last display frame when frame batching is
+     * enabled. The list is reused after this call returns and must not be kept. Calls {@link
+     * #onCharacteristicChanged(byte[])} for every entry by default.
+     */
+    public void onCharacteristicChangedBatch(List<byte[]> data) {
+        for (int i = 0; i < data.size(); i++) {
+            onCharacteristicChanged(data.get(i));
+        }
+    }
+
     public abstract void onStop();
+
+    public boolean isFrameBatching() {
+        return frameBatching;
+    }
+
+    /**
+     * Collect the notifications arriving between two display frames and deliver them at once
+     * through {@link #onCharacteristicChangedBatch(List)}. Only applies to callbacks created on the
+     * UI thread, set it before subscribing.
+     */
+    public BleNotifyOrIndicateCallback setFrameBatching(boolean frameBatching) {
+        this.frameBatching = frameBatching;
+        return this;
+    }
 }
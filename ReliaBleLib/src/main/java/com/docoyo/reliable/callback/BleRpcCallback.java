@@ -0,0 +1,15 @@
+package com.docoyo.reliable.callback;
+
+
+/**
+ * Callback of a request sent through a {@link com.docoyo.reliable.bluetooth.BleRpcChannel}.
+ * {@link #onFailure} reports a failed write, a missed deadline or a closed channel.
+ */
+public abstract class BleRpcCallback extends BleBaseCallback {
+
+  /**
+   * @param data the reply without the correlation id
+   */
+  public abstract void onResponse(byte[] data);
+
+}
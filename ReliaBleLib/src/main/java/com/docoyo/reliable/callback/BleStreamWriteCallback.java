@@ -0,0 +1,19 @@
+package com.docoyo.reliable.callback;
+
+
+import com.docoyo.reliable.data.BleWriteSource;
+
+/**
+ * Callback of a write from a {@link BleWriteSource}. Progress is reported in bytes confirmed by
+ * the stack, the chunks themselves are not handed out.
+ */
+public abstract class BleStreamWriteCallback extends BleBaseCallback {
+
+  /**
+   * @param total the length of the source or {@link BleWriteSource#UNKNOWN_LENGTH}
+   */
+  public abstract void onProgress(long written, long total);
+
+  public abstract void onWriteSuccess(long written);
+
+}
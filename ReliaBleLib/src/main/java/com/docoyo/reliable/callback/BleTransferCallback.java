@@ -0,0 +1,25 @@
+package com.docoyo.reliable.callback;
+
+
+import com.docoyo.reliable.bluetooth.BleTransfer;
+
+/**
+ * Callback of a {@link BleTransfer}. {@link #onFailure} is called once a chunk failed more often
+ * than allowed, the transfer can be resumed from its checkpoint afterwards.
+ */
+public abstract class BleTransferCallback extends BleBaseCallback {
+
+  /**
+   * @param acknowledged number of bytes confirmed so far, including the ones before the checkpoint
+   * the transfer was resumed from
+   */
+  public abstract void onProgress(long acknowledged, long total);
+
+  /**
+   * The connection was lost, the transfer waits for {@link BleTransfer#start()}
+   */
+  public abstract void onPaused(long checkpoint);
+
+  public abstract void onTransferComplete(long total);
+
+}
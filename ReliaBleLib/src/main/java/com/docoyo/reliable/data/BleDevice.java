@@ -12,6 +12,7 @@ public class BleDevice implements Parcelable {
     private byte[] mScanRecord;
     private int mRssi;
     private long mTimestampNanos;
+    private String mKey;
 
     public BleDevice(BluetoothDevice device) {
         mDevice = device;
@@ -68,10 +69,16 @@ public class BleDevice implements Parcelable {
         return null;
     }
 
+    /**
+     * The key is built once, reading the name of the device is a call into the bluetooth service
+     */
     public String getKey() {
-        if (mDevice != null)
-            return mDevice.getName() + mDevice.getAddress();
-        return "";
+        String key = mKey;
+        if (key == null) {
+            key = mDevice != null ? mDevice.getName() + mDevice.getAddress() : "";
+            mKey = key;
+        }
+        return key;
     }
 
     public BluetoothDevice getDevice() {
@@ -80,6 +87,7 @@ public class BleDevice implements Parcelable {
 
     public void setDevice(BluetoothDevice device) {
         this.mDevice = device;
+        this.mKey = null;
     }
 
     public byte[] getScanRecord() {
@@ -0,0 +1,23 @@
+package com.docoyo.reliable.data;
+
+
+/**
+ * How long to wait between the link coming up and starting service discovery.
+ */
+public enum BleDiscoveryMode {
+
+  /**
+   * Discover services as soon as the device is connected.
+   */
+  IMMEDIATE,
+
+  /**
+   * Wait {@link com.docoyo.reliable.BleManager#getDiscoveryDelay()} before discovering.
+   */
+  FIXED,
+
+  /**
+   * Start immediately and learn a delay per device model from failed discoveries. Default.
+   */
+  ADAPTIVE
+}
@@ -0,0 +1,340 @@
+package com.docoyo.reliable.data;
+
+
+import com.docoyo.reliable.utils.BleBufferPool;
+import com.docoyo.reliable.utils.BleLog;
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles logical frames from a stream of notifications. A decoder keeps the state of the
+ * frame in progress, so every subscription needs its own instance.
+ * <p>
+ * A frame that lies completely within one notification is handed out as a read-only view of the
+ * notification without copying. A frame spanning several notifications is assembled in a buffer
+ * of the {@link BleBufferPool}, each byte is copied exactly once. Either way the frame passed to
+ * the {@link FrameSink} belongs to the sink, which returns it to the pool once it has been
+ * consumed.
+ */
+public abstract class BleFrameDecoder {
+
+  public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+  /**
+   * Receives the frames found by {@link #decode(byte[], FrameSink)}
+   */
+  public interface FrameSink {
+
+    /**
+     * @param frame the payload between position and limit
+     */
+    void onFrame(ByteBuffer frame);
+  }
+
+  protected final int maxFrameLength;
+
+  protected BleFrameDecoder(int maxFrameLength) {
+    this.maxFrameLength = maxFrameLength;
+  }
+
+  /**
+   * Consumes one notification and reports every frame it completes
+   */
+  public abstract void decode(byte[] packet, FrameSink sink);
+
+  /**
+   * Drops the frame in progress, e.g. when a subscription starts
+   */
+  public abstract void reset();
+
+  /**
+   * Frames preceded by their length as unsigned integer of {@code prefixSize} bytes. The prefix
+   * does not count itself and is not part of the frame.
+   *
+   * @param prefixSize 1, 2 or 4
+   */
+  public static BleFrameDecoder lengthPrefixed(int prefixSize, boolean littleEndian) {
+    return new LengthPrefixedDecoder(prefixSize, littleEndian, DEFAULT_MAX_FRAME_LENGTH);
+  }
+
+  public static BleFrameDecoder lengthPrefixed(int prefixSize, boolean littleEndian,
+      int maxFrameLength) {
+    return new LengthPrefixedDecoder(prefixSize, littleEndian, maxFrameLength);
+  }
+
+  /**
+   * Frames terminated by the delimiter, which is not part of the frame. Empty frames are skipped.
+   */
+  public static BleFrameDecoder delimited(byte delimiter) {
+    return new DelimiterDecoder(delimiter, DEFAULT_MAX_FRAME_LENGTH);
+  }
+
+  public static BleFrameDecoder delimited(byte delimiter, int maxFrameLength) {
+    return new DelimiterDecoder(delimiter, maxFrameLength);
+  }
+
+  /**
+   * SLIP frames as specified in RFC 1055. Empty frames are skipped.
+   */
+  public static BleFrameDecoder slip() {
+    return new SlipDecoder(DEFAULT_MAX_FRAME_LENGTH);
+  }
+
+  public static BleFrameDecoder slip(int maxFrameLength) {
+    return new SlipDecoder(maxFrameLength);
+  }
+
+  /**
+   * Every notification is one frame
+   */
+  public static BleFrameDecoder perNotification() {
+    return new BleFrameDecoder(Integer.MAX_VALUE) {
+      @Override
+      public void decode(byte[] packet, FrameSink sink) {
+        sink.onFrame(view(packet, 0, packet.length));
+      }
+
+      @Override
+      public void reset() {
+      }
+    };
+  }
+
+  /**
+   * Read-only view of a frame that lies within a single packet
+   */
+  protected static ByteBuffer view(byte[] packet, int offset, int length) {
+    return ByteBuffer.wrap(packet, offset, length).slice().asReadOnlyBuffer();
+  }
+
+  private static class LengthPrefixedDecoder extends BleFrameDecoder {
+
+    private final int prefixSize;
+    private final boolean littleEndian;
+
+    private int headerCount;
+    private long header;
+    private ByteBuffer frame;
+    // Payload bytes of a dropped frame that are still to come
+    private long skip;
+
+    LengthPrefixedDecoder(int prefixSize, boolean littleEndian, int maxFrameLength) {
+      super(maxFrameLength);
+      if (prefixSize != 1 && prefixSize != 2 && prefixSize != 4) {
+        throw new IllegalArgumentException("prefixSize must be 1, 2 or 4");
+      }
+      this.prefixSize = prefixSize;
+      this.littleEndian = littleEndian;
+    }
+
+    @Override
+    public void decode(byte[] packet, FrameSink sink) {
+      int i = 0;
+      while (i < packet.length) {
+        if (skip > 0) {
+          int count = (int) Math.min(skip, packet.length - i);
+          skip -= count;
+          i += count;
+        } else if (frame == null) {
+          int b = packet[i++] & 0xFF;
+          header = littleEndian ? header | (long) b << (8 * headerCount) : header << 8 | b;
+          if (++headerCount < prefixSize) {
+            continue;
+          }
+          long length = header;
+          headerCount = 0;
+          header = 0;
+          if (length > maxFrameLength) {
+            // Skip the payload, the next prefix follows right after it
+            BleLog.w("Dropping frame of length " + length);
+            skip = length;
+            continue;
+          }
+          int available = packet.length - i;
+          if (available >= length) {
+            sink.onFrame(view(packet, i, (int) length));
+            i += (int) length;
+          } else {
+            frame = BleBufferPool.acquire((int) length);
+            frame.limit((int) length);
+            frame.put(packet, i, available);
+            i = packet.length;
+          }
+        } else {
+          int count = Math.min(frame.remaining(), packet.length - i);
+          frame.put(packet, i, count);
+          i += count;
+          if (!frame.hasRemaining()) {
+            frame.flip();
+            ByteBuffer complete = frame;
+            frame = null;
+            sink.onFrame(complete);
+          }
+        }
+      }
+    }
+
+    @Override
+    public void reset() {
+      BleBufferPool.release(frame);
+      frame = null;
+      headerCount = 0;
+      header = 0;
+      skip = 0;
+    }
+  }
+
+  private static class DelimiterDecoder extends BleFrameDecoder {
+
+    private final byte delimiter;
+
+    private ByteBuffer frame;
+    private boolean discarding;
+
+    DelimiterDecoder(byte delimiter, int maxFrameLength) {
+      super(maxFrameLength);
+      this.delimiter = delimiter;
+    }
+
+    @Override
+    public void decode(byte[] packet, FrameSink sink) {
+      int start = 0;
+      for (int i = 0; i < packet.length; i++) {
+        if (packet[i] != delimiter) {
+          continue;
+        }
+        if (discarding) {
+          discarding = false;
+        } else if (frame == null) {
+          if (i > start) {
+            sink.onFrame(view(packet, start, i - start));
+          }
+        } else if (append(packet, start, i - start)) {
+          frame.flip();
+          ByteBuffer complete = frame;
+          frame = null;
+          if (complete.hasRemaining()) {
+            sink.onFrame(complete);
+          } else {
+            BleBufferPool.release(complete);
+          }
+        } else {
+          // The oversized frame ends here
+          discarding = false;
+        }
+        start = i + 1;
+      }
+      if (start < packet.length && !discarding) {
+        append(packet, start, packet.length - start);
+      }
+    }
+
+    /**
+     * @return false if the frame grew too large and has been dropped
+     */
+    private boolean append(byte[] packet, int offset, int length) {
+      int size = frame == null ? 0 : frame.position();
+      if (size + length > maxFrameLength) {
+        BleLog.w("Dropping frame longer than " + maxFrameLength + " bytes");
+        reset();
+        discarding = true;
+        return false;
+      }
+      frame = frame == null ? BleBufferPool.acquire(length)
+          : BleBufferPool.ensureRemaining(frame, length);
+      frame.put(packet, offset, length);
+      return true;
+    }
+
+    @Override
+    public void reset() {
+      BleBufferPool.release(frame);
+      frame = null;
+      discarding = false;
+    }
+  }
+
+  private static class SlipDecoder extends BleFrameDecoder {
+
+    private static final byte END = (byte) 0xC0;
+    private static final byte ESC = (byte) 0xDB;
+    private static final byte ESC_END = (byte) 0xDC;
+    private static final byte ESC_ESC = (byte) 0xDD;
+
+    private ByteBuffer frame;
+    private boolean escaped;
+    private boolean discarding;
+
+    SlipDecoder(int maxFrameLength) {
+      super(maxFrameLength);
+    }
+
+    @Override
+    public void decode(byte[] packet, FrameSink sink) {
+      int i = 0;
+      while (i < packet.length) {
+        if (frame == null && !escaped && !discarding) {
+          // Hand out frames without escapes that fit into this packet as views
+          int end = i;
+          while (end < packet.length && packet[end] != END && packet[end] != ESC) {
+            end++;
+          }
+          if (end < packet.length && packet[end] == END) {
+            if (end > i) {
+              sink.onFrame(view(packet, i, end - i));
+            }
+            i = end + 1;
+            continue;
+          }
+        }
+
+        byte b = packet[i++];
+        if (b == END) {
+          if (discarding) {
+            discarding = false;
+          } else if (frame != null && frame.position() > 0) {
+            frame.flip();
+            ByteBuffer complete = frame;
+            frame = null;
+            sink.onFrame(complete);
+          }
+          escaped = false;
+          continue;
+        }
+        if (discarding) {
+          continue;
+        }
+        if (b == ESC) {
+          escaped = true;
+          continue;
+        }
+        if (escaped) {
+          b = b == ESC_END ? END : b == ESC_ESC ? ESC : b;
+          escaped = false;
+        }
+        append(b, packet.length - i + 1);
+      }
+    }
+
+    private void append(byte b, int hint) {
+      int size = frame == null ? 0 : frame.position();
+      if (size + 1 > maxFrameLength) {
+        BleLog.w("Dropping frame longer than " + maxFrameLength + " bytes");
+        BleBufferPool.release(frame);
+        frame = null;
+        discarding = true;
+        return;
+      }
+      frame = frame == null ? BleBufferPool.acquire(hint)
+          : BleBufferPool.ensureRemaining(frame, 1);
+      frame.put(b);
+    }
+
+    @Override
+    public void reset() {
+      BleBufferPool.release(frame);
+      frame = null;
+      escaped = false;
+      discarding = false;
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package com.docoyo.reliable.data;
+
+
+/**
+ * How a long read recognizes the last chunk. The characteristic is read repeatedly and every read
+ * returns the next chunk of the value.
+ */
+public enum BleLongReadMode {
+
+  /**
+   * The device answers with an empty value once everything has been read.
+   */
+  UNTIL_EMPTY,
+
+  /**
+   * A chunk shorter than the maximum attribute length of 512 bytes is the last one. The stack
+   * already follows a read filling the MTU with Read Blob requests, so one read returns up to 512
+   * bytes regardless of the MTU.
+   */
+  UNTIL_SHORT,
+
+  /**
+   * The first chunk starts with the length of the value as two byte little-endian integer. The
+   * prefix is not part of the delivered value.
+   */
+  LENGTH_PREFIXED
+}
@@ -21,11 +21,14 @@ public class BleMsg {
     public static final int MSG_DISCOVER_FAIL = 0x05;
     public static final int MSG_DISCOVER_SUCCESS = 0x06;
     public static final int MSG_CONNECT_OVER_TIME = 0x07;
+    public static final int MSG_MTU_NEGOTIATED = 0x08;
+    public static final int MSG_MTU_OVER_TIME = 0x09;
 
     // Notify and Indicate
     public static final int MSG_CHA_NOTIFY_START = 0x11;
     public static final int MSG_CHA_NOTIFY_STOP= 0x12;
     public static final int MSG_CHA_NOTIFY_DATA_CHANGE = 0x13;
+    public static final int MSG_CHA_NOTIFY_FRAME = 0x14;
 
     // Write
     public static final int MSG_CHA_WRITE_RESULT = 0x32;
@@ -33,6 +36,7 @@ public class BleMsg {
 
     // Read
     public static final int MSG_CHA_READ_RESULT = 0x42;
+    public static final int MSG_LONG_READ_NEXT = 0x43;
 
     // Rssi
     public static final int MSG_READ_RSSI_RESULT = 0x52;
@@ -0,0 +1,322 @@
+package com.docoyo.reliable.data;
+
+
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Preallocated ring buffer that keeps the payloads of one notification subscription. Every
+ * notification is stored as one record, a two byte length followed by the payload. Records are
+ * never split at the end of the array, so each one can be viewed as a single {@link ByteBuffer}.
+ * <p>
+ * The buffer is written by the binder thread and meant to be consumed by a single thread, either
+ * record by record through {@link #peek()} / {@link #advance()} and {@link #read(byte[], int)} or
+ * in bulk through {@link #drainTo(byte[], int, int)}. None of these methods allocate.
+ */
+public class BleNotifyRingBuffer {
+
+  public static final long DEFAULT_BLOCK_TIMEOUT = 100;
+
+  private static final int HEADER_SIZE = 2;
+  private static final int WRAP_MARKER = 0xFFFF;
+
+  /**
+   * What happens to a notification that does not fit into the buffer
+   */
+  public enum OverflowPolicy {
+
+    /**
+     * Discard the oldest records until the new one fits. While the consumer holds the oldest record
+     * through {@link #peek()} the new record is discarded instead.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the new record
+     */
+    DROP_NEWEST,
+
+    /**
+     * Block the binder thread until the consumer freed enough space or the block timeout passed,
+     * then discard the new record
+     */
+    BLOCK
+  }
+
+  private final byte[] data;
+  private final ByteBuffer view;
+  private final OverflowPolicy overflowPolicy;
+  private final long blockTimeout;
+
+  private int head;
+  private int tail;
+  private int records;
+  private boolean peeking;
+  private boolean signalPending;
+
+  private long writtenCount;
+  private long droppedCount;
+  private long blockedCount;
+
+  public BleNotifyRingBuffer(int capacity, OverflowPolicy overflowPolicy) {
+    this(capacity, overflowPolicy, DEFAULT_BLOCK_TIMEOUT);
+  }
+
+  public BleNotifyRingBuffer(int capacity, OverflowPolicy overflowPolicy, long blockTimeout) {
+    if (capacity <= HEADER_SIZE) {
+      throw new IllegalArgumentException("capacity should higher than " + HEADER_SIZE);
+    }
+    if (overflowPolicy == null) {
+      throw new IllegalArgumentException("OverflowPolicy can not be Null!");
+    }
+    this.data = new byte[capacity];
+    this.view = ByteBuffer.wrap(data).asReadOnlyBuffer();
+    this.overflowPolicy = overflowPolicy;
+    this.blockTimeout = blockTimeout;
+  }
+
+  /**
+   * Stores one notification, applying the overflow policy if it does not fit.
+   *
+   * @return true if the value has been stored
+   */
+  public synchronized boolean write(byte[] value) {
+    int length = value == null ? 0 : value.length;
+    int size = HEADER_SIZE + length;
+    if (length >= WRAP_MARKER || size > data.length) {
+      droppedCount++;
+      return false;
+    }
+
+    if (!fits(size)) {
+      switch (overflowPolicy) {
+        case DROP_OLDEST:
+          // The record under a live peek() view must stay in place
+          while (!peeking && !fits(size) && records > 0) {
+            discardOldest();
+            droppedCount++;
+          }
+          break;
+        case BLOCK:
+          blockedCount++;
+          long deadline = SystemClock.elapsedRealtime() + blockTimeout;
+          long remaining = blockTimeout;
+          while (!fits(size) && remaining > 0) {
+            try {
+              wait(remaining);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              break;
+            }
+            remaining = deadline - SystemClock.elapsedRealtime();
+          }
+          break;
+        default:
+          break;
+      }
+      if (!fits(size)) {
+        droppedCount++;
+        return false;
+      }
+    }
+
+    if (records == 0) {
+      head = 0;
+      tail = 0;
+    } else if (tail > head && data.length - tail < size) {
+      if (data.length - tail >= HEADER_SIZE) {
+        putHeader(tail, WRAP_MARKER);
+      }
+      tail = 0;
+    }
+    putHeader(tail, length);
+    if (length > 0) {
+      System.arraycopy(value, 0, data, tail + HEADER_SIZE, length);
+    }
+    tail += size;
+    if (tail == data.length) {
+      tail = 0;
+    }
+    records++;
+    writtenCount++;
+    return true;
+  }
+
+  /**
+   * Returns a read only view of the oldest record without removing it. The view is reused and only
+   * valid until {@link #advance()} is called.
+   *
+   * @return the view or null if the buffer is empty
+   */
+  public synchronized ByteBuffer peek() {
+    if (records == 0) {
+      return null;
+    }
+    skipWrapMarker();
+    int length = getHeader(head);
+    view.limit(head + HEADER_SIZE + length);
+    view.position(head + HEADER_SIZE);
+    peeking = true;
+    return view;
+  }
+
+  /**
+   * Removes the oldest record, usually the one returned by {@link #peek()}.
+   */
+  public synchronized void advance() {
+    peeking = false;
+    if (records > 0) {
+      discardOldest();
+      notifyAll();
+    }
+  }
+
+  /**
+   * Copies the oldest record to dst and removes it.
+   *
+   * @return the length of the record, or -1 if the buffer is empty or dst is too small
+   */
+  public synchronized int read(byte[] dst, int offset) {
+    if (records == 0) {
+      return -1;
+    }
+    skipWrapMarker();
+    int length = getHeader(head);
+    if (dst.length - offset < length) {
+      return -1;
+    }
+    System.arraycopy(data, head + HEADER_SIZE, dst, offset, length);
+    peeking = false;
+    discardOldest();
+    notifyAll();
+    return length;
+  }
+
+  /**
+   * Copies as many whole records as fit into dst, back to back without their length headers, and
+   * removes them.
+   *
+   * @return the number of bytes copied, or -1 if the oldest record alone is longer than maxLength or
+   * the space in dst. That record is kept and can be taken with {@link #read(byte[], int)}.
+   */
+  public synchronized int drainTo(byte[] dst, int offset, int maxLength) {
+    int copied = 0;
+    while (records > 0) {
+      skipWrapMarker();
+      int length = getHeader(head);
+      if (copied + length > maxLength || offset + copied + length > dst.length) {
+        if (copied == 0) {
+          return -1;
+        }
+        break;
+      }
+      System.arraycopy(data, head + HEADER_SIZE, dst, offset + copied, length);
+      copied += length;
+      discardOldest();
+    }
+    peeking = false;
+    notifyAll();
+    return copied;
+  }
+
+  public synchronized void clear() {
+    head = 0;
+    tail = 0;
+    records = 0;
+    peeking = false;
+    notifyAll();
+  }
+
+  public synchronized int size() {
+    return records;
+  }
+
+  public synchronized boolean isEmpty() {
+    return records == 0;
+  }
+
+  public int getCapacity() {
+    return data.length;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * Number of notifications stored so far
+   */
+  public synchronized long getWrittenCount() {
+    return writtenCount;
+  }
+
+  /**
+   * Number of notifications discarded because of overflow
+   */
+  public synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Number of times the binder thread had to wait for space with {@link OverflowPolicy#BLOCK}
+   */
+  public synchronized long getBlockedCount() {
+    return blockedCount;
+  }
+
+  /**
+   * Marks that the consumer is about to be signalled.
+   *
+   * @return true if no signal was pending yet
+   */
+  public synchronized boolean requestSignal() {
+    if (signalPending) {
+      return false;
+    }
+    signalPending = true;
+    return true;
+  }
+
+  /**
+   * Called right before the consumer is signalled, later writes signal again
+   */
+  public synchronized void clearSignal() {
+    signalPending = false;
+  }
+
+  private boolean fits(int size) {
+    if (records == 0) {
+      return size <= data.length;
+    }
+    if (tail > head) {
+      return data.length - tail >= size || head >= size;
+    }
+    return head - tail >= size;
+  }
+
+  private void skipWrapMarker() {
+    if (data.length - head < HEADER_SIZE || getHeader(head) == WRAP_MARKER) {
+      head = 0;
+    }
+  }
+
+  private void discardOldest() {
+    skipWrapMarker();
+    head += HEADER_SIZE + getHeader(head);
+    if (head == data.length) {
+      head = 0;
+    }
+    records--;
+  }
+
+  private int getHeader(int position) {
+    return ((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF);
+  }
+
+  private void putHeader(int position, int value) {
+    data[position] = (byte) (value >> 8);
+    data[position + 1] = (byte) value;
+  }
+
+}
@@ -0,0 +1,30 @@
+package com.docoyo.reliable.data;
+
+
+/**
+ * Priority classes of the per-device command queue. Commands of a higher class are always
+ * executed before commands of a lower class that are still waiting, except when a lower class has
+ * been passed over too often (see {@link BleQueue}).
+ */
+public enum BlePriority {
+
+  /**
+   * Latency critical commands, e.g. a stop command. Never preempted by starving lower lanes.
+   */
+  CONTROL,
+
+  /**
+   * Commands the user is waiting for. Default for reads, writes and notify subscriptions.
+   */
+  INTERACTIVE,
+
+  /**
+   * Bulk data, e.g. firmware or file chunks.
+   */
+  BULK,
+
+  /**
+   * Low value housekeeping, e.g. periodic RSSI polls. Default for {@code readRssi}.
+   */
+  BACKGROUND
+}
@@ -1,5 +1,6 @@
 package com.docoyo.reliable.data;
 
+import android.bluetooth.BluetoothGatt;
 import android.os.Handler;
 import android.os.Message;
 
@@ -7,36 +8,70 @@ import com.docoyo.reliable.BleManager;
 import com.docoyo.reliable.bluetooth.BleBluetooth;
 import com.docoyo.reliable.bluetooth.BleCommand;
 
+import com.docoyo.reliable.bluetooth.BleCommand.BleCommandType;
+import com.docoyo.reliable.bluetooth.BleCommandDeque;
+import com.docoyo.reliable.bluetooth.BleConnector;
+import com.docoyo.reliable.exception.BleException;
+import com.docoyo.reliable.callback.BleWriteCallback;
+import com.docoyo.reliable.exception.GattException;
+import com.docoyo.reliable.exception.OtherException;
 import com.docoyo.reliable.exception.TimeoutException;
 import com.docoyo.reliable.utils.BleLog;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
+import com.docoyo.reliable.utils.BleTimingWheel;
 
 
+/**
+ * Per-device command scheduler. Commands are kept in one FIFO lane per {@link BlePriority} and the
+ * highest non-empty lane is served first. To keep the lower lanes from starving, every lane counts
+ * how often it was passed over while it had waiting commands. Once that count reaches {@link
+ * #STARVATION_LIMIT} the lane is served next, unless the command waiting in front is a {@link
+ * BlePriority#CONTROL} command.
+ * <p>
+ * Writes without response are pipelined: up to {@link BleManager#getWriteWindow()} of them are
+ * handed to the stack without waiting for each other. Every {@code onCharacteristicWrite} returns
+ * one credit, and a write the stack refuses is retried once the next credit arrives. Any other
+ * command waits until all pipelined writes have been confirmed. A pipelined write that times out
+ * is failed right away but keeps its place until its credit arrives, as credits carry no identity.
+ * <p>
+ * Every enqueued command gets an increasing id and is linked directly into an intrusive {@link
+ * BleCommandDeque}, so cancelling a waiting command and matching a timeout are O(1). Operate
+ * timeouts live on the shared {@link BleTimingWheel} and are cancelled as soon as a command
+ * completes.
+ */
 public class BleQueue {
 
+  static final int STARVATION_LIMIT = 8;
+
+  private static final BlePriority[] PRIORITIES = BlePriority.values();
+
   private final Handler mHandler;
 
-  private final Queue<String> fifo = new LinkedList<>();
+  private final BleCommandDeque[] lanes = new BleCommandDeque[PRIORITIES.length];
+  private final int[] skipCounts = new int[PRIORITIES.length];
 
-  private final Map<String, BleCommand> commandStore = new HashMap<>();
   private final BleBluetooth mBleBluetooth;
 
+  private long nextCommandId = 1;
   private BleCommand currentCommand = null;
 
+  private final BleCommandDeque inFlightWrites = new BleCommandDeque();
+  private BleCommand blockedWrite = null;
+
   public static class Messages {
 
     public static final int MSG_ENQUEUE = 0x100;
     public static final int MSG_DEQUEUE = 0x101;
-    static final int MSG_TIMEOUT = 0x102;
+    public static final int MSG_WRITE_CREDIT = 0x103;
+    public static final int MSG_CANCEL = 0x104;
   }
 
   public BleQueue(BleBluetooth bleBluetooth) {
     mBleBluetooth = bleBluetooth;
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new BleCommandDeque();
+    }
 
-    mHandler = new Handler(BleManager.getInstance().getBgLooper()) {
+    mHandler = new Handler(bleBluetooth.getLooper()) {
       @Override
       public void handleMessage(Message msg) {
         super.handleMessage(msg);
@@ -44,32 +79,31 @@ public class BleQueue {
         BleCommand command = (BleCommand) msg.obj;
         switch (msg.what) {
           case Messages.MSG_ENQUEUE:
-            commandStore.put(command.getUuidWithCallback(), command);
-            fifo.add(command.getUuidWithCallback());
+            command.setId(nextCommandId++);
+            lanes[command.getPriority().ordinal()].add(command);
+            command.setTimeout(mBleBluetooth.getEventLoop().getTimingWheel().schedule(
+                () -> handleTimeout(command), BleManager.getInstance().getOperateTimeout()));
             if (currentCommand == null) {
               executeNextCommand();
             }
-
-            mHandler.sendMessageDelayed(mHandler.obtainMessage(Messages.MSG_TIMEOUT, command),
-                BleManager.getInstance().getOperateTimeout());
             break;
 
           case Messages.MSG_DEQUEUE:
-            commandStore.remove(command.getUuidWithCallback());
+            cancelTimeout(command);
             executeNextCommand();
 
             break;
 
-          case Messages.MSG_TIMEOUT:
-            commandStore.remove(command.getUuidWithCallback());
-            if (currentCommand == null){
-              return;
-            }
-            if (currentCommand.getUuidWithCallback().equals(command.getUuidWithCallback())) {
-              BleManager.getInstance().runBleCallbackMethodInContext(
-                  () -> command.getCallback().onFailure(new TimeoutException()),
-                  command.getCallback().isRunOnUiThread());
+          case Messages.MSG_WRITE_CREDIT:
+            handleWriteCredit(msg.arg1);
+            break;
+
+          case Messages.MSG_CANCEL:
+            if (lanes[command.getPriority().ordinal()].remove(command)) {
+              cancelTimeout(command);
+              notifyFailure(command, new OtherException("Command cancelled"));
             }
+            break;
 
           default:
             BleLog.d("Received Message " + msg.what);
@@ -78,34 +112,214 @@ public class BleQueue {
     };
   }
 
-  private void executeNextCommand() {
-    String nextCommandUuid = fifo.poll();
-    // Queue is empty
-    if (nextCommandUuid == null) {
-      currentCommand = null;
+  private void handleTimeout(BleCommand command) {
+    if (lanes[command.getPriority().ordinal()].remove(command)) {
+      notifyFailure(command, new TimeoutException());
+      return;
+    }
+    if (inFlightWrites.contains(command)) {
+      // Credits are matched in order, so the write keeps its slot until the stack confirms it
+      command.setAbandoned(true);
+      notifyFailure(command, new TimeoutException());
+      return;
+    }
+    if (blockedWrite == command) {
+      blockedWrite = null;
+      notifyFailure(command, new TimeoutException());
+      if (currentCommand == null) {
+        executeNextCommand();
+      }
       return;
     }
+    if (currentCommand == command) {
+      notifyFailure(command, new TimeoutException());
+      if (command.getBleCommandType() == BleCommandType.WRITE_SPLIT) {
+        // The remaining chunks are dropped, nothing is left to wait for
+        mBleBluetooth.getBleConnector().abortSplitWrite();
+        executeNextCommand();
+      } else if (command.getBleCommandType() == BleCommandType.READ_LONG) {
+        mBleBluetooth.getBleConnector().abortLongRead();
+        executeNextCommand();
+      }
+    }
+  }
 
-    currentCommand = commandStore.get(nextCommandUuid);
+  private void cancelTimeout(BleCommand command) {
+    BleTimingWheel.Timeout timeout = command.getTimeout();
+    if (timeout != null) {
+      timeout.cancel();
+    }
+  }
 
-    // Command was removed most likely because of timeout
-    if (currentCommand == null) {
-      BleLog.i("Could not find ble command with uuid " + nextCommandUuid);
-      executeNextCommand();
+  /**
+   * Returns the lane to be served next, honouring priorities and starvation protection.
+   *
+   * @return the index of the lane or -1 if all lanes are empty
+   */
+  private int selectLane() {
+    int selected = -1;
+    for (int i = 0; i < lanes.length; i++) {
+      if (!lanes[i].isEmpty()) {
+        selected = i;
+        break;
+      }
+    }
+    if (selected < 0) {
+      return -1;
+    }
+
+    if (PRIORITIES[selected] != BlePriority.CONTROL) {
+      for (int i = selected + 1; i < lanes.length; i++) {
+        if (!lanes[i].isEmpty() && skipCounts[i] >= STARVATION_LIMIT) {
+          return i;
+        }
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Takes the next command from the given lane and updates the starvation counters.
+   */
+  private BleCommand pollLane(int selected) {
+    for (int i = selected + 1; i < lanes.length; i++) {
+      if (!lanes[i].isEmpty()) {
+        skipCounts[i]++;
+      }
+    }
+    skipCounts[selected] = 0;
+    return lanes[selected].poll();
+  }
+
+  private void executeNextCommand() {
+    while (true) {
+      if (blockedWrite != null) {
+        // The stack refused the last write, wait for the next credit
+        return;
+      }
+
+      int lane = selectLane();
+      // Queue is empty
+      if (lane < 0) {
+        currentCommand = null;
+        return;
+      }
+
+      BleCommand nextCommand = lanes[lane].peek();
+
+      if (nextCommand.getBleCommandType() == BleCommandType.WRITE_NO_RESPONSE) {
+        if (inFlightWrites.size() >= BleManager.getInstance().getWriteWindow()) {
+          currentCommand = null;
+          return;
+        }
+        pollLane(lane);
+        mBleBluetooth.getEventLoop().countCommand();
+        mBleBluetooth.recordTraffic();
+        mBleBluetooth.onCommandDispatched(nextCommand);
+        currentCommand = null;
+        submitWrite(nextCommand);
+        continue;
+      }
+
+      if (!inFlightWrites.isEmpty()) {
+        // Let pipelined writes drain before anything else uses the connection
+        currentCommand = null;
+        return;
+      }
+
+      pollLane(lane);
+      mBleBluetooth.getEventLoop().countCommand();
+      if (nextCommand.getBleCommandType() != BleCommandType.READ_RSSI) {
+        mBleBluetooth.recordTraffic();
+      }
+      mBleBluetooth.onCommandDispatched(nextCommand);
+      currentCommand = nextCommand;
+      boolean handled = mBleBluetooth.getBleConnector()
+          .executeCommand(currentCommand);
+
+      if (!handled) {
+        return;
+      }
+      cancelTimeout(currentCommand);
+    }
+  }
+
+  /**
+   * Hands a write without response to the stack and keeps track of the credit it consumes.
+   */
+  private void submitWrite(BleCommand command) {
+    switch (mBleBluetooth.getBleConnector().executeWriteWithoutResponse(command)) {
+      case BleConnector.WRITE_SUBMITTED:
+        inFlightWrites.add(command);
+        break;
+      case BleConnector.WRITE_BUSY:
+        if (inFlightWrites.isEmpty()) {
+          cancelTimeout(command);
+          notifyFailure(command, new OtherException("gatt writeCharacteristic fail"));
+        } else {
+          blockedWrite = command;
+        }
+        break;
+      default:
+        cancelTimeout(command);
+        break;
+    }
+  }
+
+  /**
+   * A pipelined write has been confirmed by the stack, report it and refill the window.
+   */
+  private void handleWriteCredit(int status) {
+    BleCommand command = inFlightWrites.poll();
+    if (command == null) {
+      // Nothing is waiting for a credit, the queue state is unchanged
+      BleLog.w("Received write credit without a pending write");
       return;
     }
-    boolean handled = mBleBluetooth.newBleConnector()
-            .executeCommand(currentCommand);
 
-    if (handled) {
-      commandStore.remove(currentCommand.getUuidWithCallback());
+    cancelTimeout(command);
+    // A write that already failed with a timeout only hands back its slot
+    if (!command.isAbandoned()) {
+      BleWriteCallback callback = (BleWriteCallback) command.getCallback();
+      if (status == BluetoothGatt.GATT_SUCCESS) {
+        BleManager.getInstance().runBleCallbackMethodInContext(
+            () -> callback.onWriteSuccess(BleWriteState.DATA_WRITE_SINGLE,
+                BleWriteState.DATA_WRITE_SINGLE, command.getValue()),
+            callback.isRunOnUiThread());
+      } else {
+        BleManager.getInstance().runBleCallbackMethodInContext(
+            () -> callback.onFailure(new GattException(status)), callback.isRunOnUiThread());
+      }
+    }
+
+    if (blockedWrite != null) {
+      BleCommand retry = blockedWrite;
+      blockedWrite = null;
+      submitWrite(retry);
+    }
+    if (currentCommand == null) {
       executeNextCommand();
     }
   }
 
+  private void notifyFailure(BleCommand command, BleException exception) {
+    command.closeSource();
+    BleManager.getInstance().runBleCallbackMethodInContext(
+        () -> command.getCallback().onFailure(exception),
+        command.getCallback().isRunOnUiThread());
+  }
+
   public Handler getHandler() {
     return mHandler;
   }
 
+  /**
+   * The command waiting for the stack, null while none is or only pipelined writes are in flight.
+   * Only valid on the looper of the device.
+   */
+  public BleCommand getCurrentCommand() {
+    return currentCommand;
+  }
+
 
 }
@@ -0,0 +1,239 @@
+package com.docoyo.reliable.data;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Data of a streaming write. The writer pulls one chunk of the current MTU at a time, so only the
+ * chunk in flight and a few read-ahead buffers of {@link #READ_AHEAD_SIZE} bytes are kept in
+ * memory, independent of the size of the payload.
+ * <p>
+ * Sources that may block are read ahead on a shared I/O thread, see {@link #isBlocking()}, others
+ * are read on the looper of the device. Sources are closed by the library once the write is done,
+ * failed or dropped.
+ */
+public abstract class BleWriteSource implements Closeable {
+
+  public static final long UNKNOWN_LENGTH = -1;
+
+  public static final int READ_AHEAD_SIZE = 4096;
+
+  /**
+   * Number of bytes left in the source
+   *
+   * @return the length or {@link #UNKNOWN_LENGTH}
+   */
+  public abstract long length();
+
+  /**
+   * Reads the next chunk. Blocks until {@code length} bytes have been read or the end of the
+   * source has been reached, only the last chunk may be shorter.
+   *
+   * @return the number of bytes read, 0 at the end of the source
+   */
+  public abstract int read(byte[] buffer, int offset, int length) throws IOException;
+
+  /**
+   * Whether {@link #read(byte[], int, int)} may block, e.g. on disk or network I/O. Such a source
+   * is read on a shared I/O thread instead of the looper of the device, which serves other devices
+   * as well. Only sources that read from memory should return false.
+   */
+  public boolean isBlocking() {
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+  }
+
+  public static BleWriteSource of(byte[] data) {
+    return new ArraySource(data);
+  }
+
+  /**
+   * @param length number of bytes the stream will deliver or {@link #UNKNOWN_LENGTH}
+   */
+  public static BleWriteSource of(InputStream inputStream, long length) {
+    return new StreamSource(inputStream, length);
+  }
+
+  /**
+   * Reads the channel from its current position to its end
+   */
+  public static BleWriteSource of(FileChannel channel) throws IOException {
+    return new ChannelSource(channel);
+  }
+
+  /**
+   * Reads the remaining bytes of the buffer, e.g. a {@link java.nio.MappedByteBuffer}. The
+   * position of the buffer is advanced.
+   */
+  public static BleWriteSource of(ByteBuffer buffer) {
+    return new BufferSource(buffer);
+  }
+
+  /**
+   * Maps the file read-only, the pages are loaded by the system as the write advances
+   */
+  public static BleWriteSource map(File file) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel channel = randomAccessFile.getChannel()) {
+      return new BufferSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  private static class ArraySource extends BleWriteSource {
+
+    private final byte[] data;
+    private int offset;
+
+    ArraySource(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public boolean isBlocking() {
+      return false;
+    }
+
+    @Override
+    public long length() {
+      return data.length - offset;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      int count = Math.min(length, data.length - this.offset);
+      System.arraycopy(data, this.offset, buffer, offset, count);
+      this.offset += count;
+      return count;
+    }
+  }
+
+  private static class BufferSource extends BleWriteSource {
+
+    private final ByteBuffer buffer;
+
+    BufferSource(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public boolean isBlocking() {
+      return buffer instanceof MappedByteBuffer;
+    }
+
+    @Override
+    public long length() {
+      return buffer.remaining();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      int count = Math.min(length, this.buffer.remaining());
+      this.buffer.get(buffer, offset, count);
+      return count;
+    }
+  }
+
+  private static class StreamSource extends BleWriteSource {
+
+    private final InputStream inputStream;
+    private final byte[] readAhead = new byte[READ_AHEAD_SIZE];
+    private long remaining;
+    private int position;
+    private int limit;
+    private boolean endOfStream;
+
+    StreamSource(InputStream inputStream, long length) {
+      this.inputStream = inputStream;
+      this.remaining = length;
+    }
+
+    @Override
+    public long length() {
+      return remaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int count = 0;
+      while (count < length) {
+        if (position == limit) {
+          if (endOfStream) {
+            break;
+          }
+          position = 0;
+          limit = Math.max(inputStream.read(readAhead, 0, readAhead.length), 0);
+          endOfStream = limit == 0;
+          continue;
+        }
+        int n = Math.min(length - count, limit - position);
+        System.arraycopy(readAhead, position, buffer, offset + count, n);
+        position += n;
+        count += n;
+      }
+      if (remaining != UNKNOWN_LENGTH) {
+        remaining = Math.max(remaining - count, 0);
+      }
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inputStream.close();
+    }
+  }
+
+  private static class ChannelSource extends BleWriteSource {
+
+    private final FileChannel channel;
+    private final ByteBuffer readAhead = ByteBuffer.allocate(READ_AHEAD_SIZE);
+    private long remaining;
+    private boolean endOfStream;
+
+    ChannelSource(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.remaining = channel.size() - channel.position();
+      readAhead.flip();
+    }
+
+    @Override
+    public long length() {
+      return remaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int count = 0;
+      while (count < length) {
+        if (!readAhead.hasRemaining()) {
+          if (endOfStream) {
+            break;
+          }
+          readAhead.clear();
+          endOfStream = channel.read(readAhead) <= 0;
+          readAhead.flip();
+          continue;
+        }
+        int n = Math.min(length - count, readAhead.remaining());
+        readAhead.get(buffer, offset + count, n);
+        count += n;
+      }
+      remaining = Math.max(remaining - count, 0);
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
@@ -33,6 +33,8 @@ abstract class BleScanPresenter implements BluetoothAdapter.LeScanCallback {
     private BleScanPresenterImp mBleScanPresenterImp;
 
     private final List<BleDevice> mBleDeviceList = new ArrayList<>();
+    // Position of every device of mBleDeviceList by MAC, only used on the scan thread
+    private final MacIndex mMacIndex = new MacIndex();
 
     private final Handler mMainHandler = new Handler(Looper.getMainLooper());
     private HandlerThread mHandlerThread;
@@ -146,27 +148,49 @@ abstract class BleScanPresenter implements BluetoothAdapter.LeScanCallback {
             mMainHandler.post(() -> BleScanner.getInstance().stopLeScan());
 
         } else {
-            AtomicBoolean hasFound = new AtomicBoolean(false);
-            for (BleDevice result : mBleDeviceList) {
-                if (result.getDevice().equals(bleDevice.getDevice())) {
-                    hasFound.set(true);
-                }
-            }
-            if (!hasFound.get()) {
+            BleDevice known = findDevice(bleDevice);
+            if (known != null) {
+                // Refresh the result that has already been reported
+                known.setRssi(bleDevice.getRssi());
+                known.setScanRecord(bleDevice.getScanRecord());
+                known.setTimestampNanos(bleDevice.getTimestampNanos());
+            } else {
                 BleLog.i("device detected  ------"
                         + "  name: " + bleDevice.getName()
                         + "  mac: " + bleDevice.getMac()
                         + "  Rssi: " + bleDevice.getRssi()
                         + "  scanRecord: " + HexUtil.formatHexString(bleDevice.getScanRecord(), true));
 
+                long mac = MacIndex.pack(bleDevice.getMac());
+                if (mac != MacIndex.INVALID_MAC) {
+                    mMacIndex.put(mac, mBleDeviceList.size());
+                }
                 mBleDeviceList.add(bleDevice);
                 mMainHandler.post(() -> onScanning(bleDevice));
             }
         }
     }
 
+    /**
+     * Looks up a device reported before in this scan, by hash of its MAC address
+     */
+    private BleDevice findDevice(BleDevice bleDevice) {
+        long mac = MacIndex.pack(bleDevice.getMac());
+        if (mac != MacIndex.INVALID_MAC) {
+            int position = mMacIndex.get(mac);
+            return position < 0 ? null : mBleDeviceList.get(position);
+        }
+        for (BleDevice result : mBleDeviceList) {
+            if (result.getDevice().equals(bleDevice.getDevice())) {
+                return result;
+            }
+        }
+        return null;
+    }
+
     public final void notifyScanStarted(final boolean success) {
         mBleDeviceList.clear();
+        mMacIndex.clear();
 
         removeHandlerMsg();
 
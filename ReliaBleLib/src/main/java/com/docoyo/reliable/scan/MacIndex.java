@@ -0,0 +1,115 @@
+package com.docoyo.reliable.scan;
+
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table from a MAC address packed into the lower 48 bits of a {@code long} to
+ * the position of the device in the scan result list. Keys and values live in two primitive
+ * arrays, so neither lookups nor inserts allocate until the table grows.
+ */
+class MacIndex {
+
+    static final long INVALID_MAC = -1;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private long[] mKeys;
+    // Position + 1, 0 marks an empty slot
+    private int[] mValues;
+    private int mSize;
+
+    MacIndex() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Packs an address of the form {@code AA:BB:CC:DD:EE:FF} without allocating
+     *
+     * @return the packed address or {@link #INVALID_MAC}
+     */
+    static long pack(String mac) {
+        if (mac == null || mac.length() != 17) {
+            return INVALID_MAC;
+        }
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = mac.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return INVALID_MAC;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return INVALID_MAC;
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return the position stored for the address or -1
+     */
+    int get(long mac) {
+        int mask = mKeys.length - 1;
+        for (int i = hash(mac) & mask; mValues[i] != 0; i = (i + 1) & mask) {
+            if (mKeys[i] == mac) {
+                return mValues[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    void put(long mac, int position) {
+        if ((mSize + 1) * 2 > mKeys.length) {
+            grow();
+        }
+        int mask = mKeys.length - 1;
+        int i = hash(mac) & mask;
+        while (mValues[i] != 0) {
+            if (mKeys[i] == mac) {
+                mValues[i] = position + 1;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        mKeys[i] = mac;
+        mValues[i] = position + 1;
+        mSize++;
+    }
+
+    void clear() {
+        Arrays.fill(mValues, 0);
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        allocate(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != 0) {
+                put(keys[i], values[i] - 1);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mSize = 0;
+    }
+
+    private static int hash(long mac) {
+        // The vendor prefix is shared by most devices of a site, mix in all bits
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
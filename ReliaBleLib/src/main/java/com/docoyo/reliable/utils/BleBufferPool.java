@@ -0,0 +1,106 @@
+package com.docoyo.reliable.utils;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of heap {@link ByteBuffer}s used to assemble payloads that span several GATT packets.
+ * Capacities are rounded up to a power of two, so a buffer released after one payload serves the
+ * next payload of a similar size without allocating. Buffers larger than {@link
+ * #MAX_POOLED_CAPACITY} are not kept.
+ * <p>
+ * The pool is shared by all devices and may be used from any thread.
+ */
+public final class BleBufferPool {
+
+  public static final int MIN_CAPACITY = 256;
+  public static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+  private static final int MAX_BUFFERS_PER_CLASS = 8;
+  private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CAPACITY);
+  private static final int CLASS_COUNT =
+      Integer.numberOfTrailingZeros(MAX_POOLED_CAPACITY) - MIN_SHIFT + 1;
+
+  private static final ArrayDeque<ByteBuffer>[] pools = createPools();
+
+  private BleBufferPool() {
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static ArrayDeque<ByteBuffer>[] createPools() {
+    ArrayDeque<ByteBuffer>[] pools = new ArrayDeque[CLASS_COUNT];
+    for (int i = 0; i < pools.length; i++) {
+      pools[i] = new ArrayDeque<>(MAX_BUFFERS_PER_CLASS);
+    }
+    return pools;
+  }
+
+  /**
+   * Returns an empty buffer of at least the given capacity
+   */
+  public static ByteBuffer acquire(int minCapacity) {
+    int capacity = capacityFor(minCapacity);
+    int sizeClass = sizeClass(capacity);
+    if (sizeClass < CLASS_COUNT) {
+      ArrayDeque<ByteBuffer> pool = pools[sizeClass];
+      synchronized (pool) {
+        ByteBuffer buffer = pool.poll();
+        if (buffer != null) {
+          buffer.clear();
+          return buffer;
+        }
+      }
+    }
+    return ByteBuffer.allocate(capacity);
+  }
+
+  /**
+   * Makes room for {@code additional} more bytes after the position of the buffer. If the buffer
+   * is too small its content up to the position is moved into a larger one and it is released.
+   *
+   * @return the buffer to continue with, in write mode
+   */
+  public static ByteBuffer ensureRemaining(ByteBuffer buffer, int additional) {
+    if (buffer.remaining() >= additional) {
+      return buffer;
+    }
+    ByteBuffer larger = acquire(buffer.position() + additional);
+    buffer.flip();
+    larger.put(buffer);
+    release(buffer);
+    return larger;
+  }
+
+  /**
+   * Hands the buffer back, it must not be used afterwards
+   */
+  public static void release(ByteBuffer buffer) {
+    if (buffer == null || !buffer.hasArray() || buffer.isReadOnly()) {
+      return;
+    }
+    int capacity = buffer.capacity();
+    if (Integer.bitCount(capacity) != 1 || capacity < MIN_CAPACITY
+        || capacity > MAX_POOLED_CAPACITY) {
+      return;
+    }
+    ArrayDeque<ByteBuffer> pool = pools[sizeClass(capacity)];
+    synchronized (pool) {
+      if (pool.size() < MAX_BUFFERS_PER_CLASS) {
+        pool.offer(buffer);
+      }
+    }
+  }
+
+  private static int capacityFor(int minCapacity) {
+    if (minCapacity <= MIN_CAPACITY) {
+      return MIN_CAPACITY;
+    }
+    int capacity = Integer.highestOneBit(minCapacity);
+    return capacity == minCapacity ? capacity : capacity << 1;
+  }
+
+  private static int sizeClass(int capacity) {
+    return Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+  }
+}
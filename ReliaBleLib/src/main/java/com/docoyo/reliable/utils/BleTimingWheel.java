@@ -0,0 +1,212 @@
+package com.docoyo.reliable.utils;
+
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * Hashed timing wheel driven by a looper. Timeouts are hashed into one of {@code wheelSize}
+ * buckets by their deadline tick, so scheduling and cancelling are O(1) and a cancelled timeout
+ * leaves nothing behind in the message queue of the looper. While timeouts are pending the wheel
+ * posts a single tick message every {@code tickMillis}, when it is empty it posts nothing.
+ * <p>
+ * Timeouts may be scheduled and cancelled from any thread, they always expire on the looper of
+ * the wheel. Deadlines are rounded up to the next tick.
+ */
+public class BleTimingWheel {
+
+  public static final long DEFAULT_TICK_MILLIS = 50;
+  public static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private static final int MSG_TICK = 0x01;
+
+  private final Handler mHandler;
+  private final Timeout[] buckets;
+  private final int mask;
+  private final long tickMillis;
+  private final long startTime;
+
+  private long processedTick;
+  private int pendingCount;
+  private boolean tickScheduled;
+
+  public BleTimingWheel(Looper looper) {
+    this(looper, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+  }
+
+  /**
+   * @param wheelSize number of buckets, rounded up to a power of two
+   */
+  public BleTimingWheel(Looper looper, long tickMillis, int wheelSize) {
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("tickMillis must be greater than 0");
+    }
+    int size = 1;
+    while (size < wheelSize) {
+      size <<= 1;
+    }
+    this.buckets = new Timeout[size];
+    this.mask = size - 1;
+    this.tickMillis = tickMillis;
+    this.startTime = SystemClock.uptimeMillis();
+    this.mHandler = new Handler(looper) {
+      @Override
+      public void handleMessage(Message msg) {
+        if (msg.what == MSG_TICK) {
+          tick();
+        }
+      }
+    };
+  }
+
+  /**
+   * Schedules the timeout to expire after the given delay. A timeout that is already pending is
+   * rescheduled.
+   *
+   * @return the given timeout
+   */
+  public Timeout schedule(Timeout timeout, long delayMillis) {
+    if (timeout.wheel != this) {
+      timeout.cancel();
+    }
+    synchronized (this) {
+      if (timeout.wheel == this) {
+        unlink(timeout);
+      }
+      long now = SystemClock.uptimeMillis();
+      long deadlineTick = (now - startTime + Math.max(0, delayMillis) + tickMillis - 1) / tickMillis;
+      if (deadlineTick <= processedTick) {
+        deadlineTick = processedTick + 1;
+      }
+      timeout.deadlineTick = deadlineTick;
+      timeout.wheel = this;
+
+      int index = (int) (deadlineTick & mask);
+      Timeout head = buckets[index];
+      timeout.prev = null;
+      timeout.next = head;
+      if (head != null) {
+        head.prev = timeout;
+      }
+      buckets[index] = timeout;
+      pendingCount++;
+
+      if (!tickScheduled) {
+        tickScheduled = true;
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(MSG_TICK),
+            startTime + (processedTick + 1) * tickMillis);
+      }
+    }
+    return timeout;
+  }
+
+  /**
+   * Creates a timeout for the task and schedules it.
+   */
+  public Timeout schedule(Runnable task, long delayMillis) {
+    return schedule(new Timeout(task), delayMillis);
+  }
+
+  /**
+   * @return true if the timeout was pending and has been cancelled
+   */
+  public synchronized boolean cancel(Timeout timeout) {
+    if (timeout == null || timeout.wheel != this) {
+      return false;
+    }
+    unlink(timeout);
+    return true;
+  }
+
+  public synchronized int getPendingCount() {
+    return pendingCount;
+  }
+
+  private void unlink(Timeout timeout) {
+    int index = (int) (timeout.deadlineTick & mask);
+    if (timeout.prev == null) {
+      buckets[index] = timeout.next;
+    } else {
+      timeout.prev.next = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.wheel = null;
+    pendingCount--;
+  }
+
+  private void tick() {
+    Timeout expired = null;
+    synchronized (this) {
+      tickScheduled = false;
+      long targetTick = (SystemClock.uptimeMillis() - startTime) / tickMillis;
+      long ticks = Math.min(targetTick - processedTick, buckets.length);
+      for (long i = 1; i <= ticks; i++) {
+        int index = (int) ((processedTick + i) & mask);
+        Timeout timeout = buckets[index];
+        while (timeout != null) {
+          Timeout next = timeout.next;
+          if (timeout.deadlineTick <= targetTick) {
+            unlink(timeout);
+            // Chain the expired timeouts, they are run outside the lock
+            timeout.nextExpired = expired;
+            expired = timeout;
+          }
+          timeout = next;
+        }
+      }
+      if (targetTick > processedTick) {
+        processedTick = targetTick;
+      }
+
+      if (pendingCount > 0) {
+        tickScheduled = true;
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(MSG_TICK),
+            startTime + (processedTick + 1) * tickMillis);
+      }
+    }
+
+    while (expired != null) {
+      Timeout next = expired.nextExpired;
+      expired.nextExpired = null;
+      expired.task.run();
+      expired = next;
+    }
+  }
+
+  /**
+   * Handle of a scheduled task. A timeout can be scheduled again after it expired or was
+   * cancelled.
+   */
+  public static class Timeout {
+
+    private final Runnable task;
+    private volatile BleTimingWheel wheel;
+    private long deadlineTick;
+    private Timeout prev;
+    private Timeout next;
+    private Timeout nextExpired;
+
+    public Timeout(Runnable task) {
+      this.task = task;
+    }
+
+    /**
+     * @return true if the timeout was pending and has been cancelled
+     */
+    public boolean cancel() {
+      BleTimingWheel current = wheel;
+      return current != null && current.cancel(this);
+    }
+
+    public boolean isPending() {
+      return wheel != null;
+    }
+  }
+
+}